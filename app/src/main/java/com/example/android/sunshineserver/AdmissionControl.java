@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Caps the number of requests in flight at once.  A request holds a permit from the moment its
+ * handler is entered until its response has been sent, which on the NIO engine includes any time
+ * spent streaming, throttled or delayed.  When no permit is free the request is answered at once
+ * with a 503 and a Retry-After header instead of queueing behind the others, so an overloaded
+ * server keeps answering quickly rather than leaving clients to time out.
+ *
+ * Only the handlers passed through guard() are limited; /metrics stays reachable under load.
+ */
+class AdmissionControl {
+    // HttpContext attribute marking a connection whose current request holds a permit
+    static final String ATTR_PERMIT = "sunshine.admission-permit";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    static final String RETRY_AFTER = "Retry-After";
+
+    private final Semaphore mPermits;
+    private final ServerMetrics mMetrics;
+
+    AdmissionControl(int maxConcurrentRequests, ServerMetrics metrics) {
+        mPermits = new Semaphore(Math.max(1, maxConcurrentRequests));
+        mMetrics = metrics;
+    }
+
+    /**
+     * @return a handler that serves requests through handler while a permit is free, and sheds
+     * them otherwise
+     */
+    HttpRequestHandler guard(final HttpRequestHandler handler) {
+        return new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+                    throws HttpException, IOException {
+                if (!mPermits.tryAcquire()) {
+                    mMetrics.onShed();
+                    setShedResponse(response);
+                    return;
+                }
+                AtomicBoolean held = (AtomicBoolean) context.getAttribute(ATTR_PERMIT);
+                if (held == null) {
+                    held = new AtomicBoolean();
+                    context.setAttribute(ATTR_PERMIT, held);
+                }
+                held.set(true);
+                mMetrics.onAdmitted();
+                handler.handle(request, response, context);
+            }
+        };
+    }
+
+    /**
+     * Returns the permit held by the connection's current request, if it has one.  Engines call
+     * this once the response has been sent, or the connection has closed.
+     */
+    void release(HttpContext context) {
+        AtomicBoolean held = (AtomicBoolean) context.getAttribute(ATTR_PERMIT);
+        if (held != null && held.compareAndSet(true, false)) {
+            mMetrics.onAdmittedDone();
+            mPermits.release();
+        }
+    }
+
+    /**
+     * @return true if response is a 503 from admission control
+     */
+    static boolean isShed(HttpResponse response) {
+        return response.getStatusLine().getStatusCode() == HttpStatus.SC_SERVICE_UNAVAILABLE
+                && response.containsHeader(RETRY_AFTER);
+    }
+
+    /**
+     * @return the body of a 503, in the same shape as the handlers' other error responses
+     */
+    static byte[] getShedBody() {
+        return WeatherCommandHandler.getErrorResponse(HttpStatus.SC_SERVICE_UNAVAILABLE).getBytes(UTF_8);
+    }
+
+    /**
+     * Writes a complete 503 response, for connections shed before HttpService ever sees them.
+     */
+    static void writeShedResponse(OutputStream out) throws IOException {
+        byte[] body = getShedBody();
+        String head = "HTTP/1.1 503 Service Unavailable\r\n" +
+                RETRY_AFTER + ": " + HttpServer.sRetryAfterSeconds + "\r\n" +
+                "Content-Type: " + WeatherCommandHandler.CONTENT_TYPE_JSON + "\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "Connection: close\r\n\r\n";
+        out.write(head.getBytes(US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    static void setShedResponse(HttpResponse response) {
+        response.setStatusCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+        response.setHeader(RETRY_AFTER, Integer.toString(HttpServer.sRetryAfterSeconds));
+        response.setHeader("Content-Type", WeatherCommandHandler.CONTENT_TYPE_JSON);
+        // the client is better off trying again on a fresh connection once the load has passed
+        response.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+        response.setEntity(new ByteArrayEntity(getShedBody()));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The server's platform on a device: settings come from the SharedPreferences ServerControl
+ * writes, the request log lives in the app's files directory, and diagnostics go to logcat.
+ */
+public class AndroidPlatform implements ServerPlatform, SharedPreferences.OnSharedPreferenceChangeListener {
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    public AndroidPlatform(Context context) {
+        // never hold on to an Activity
+        mContext = context.getApplicationContext();
+        mPreferences = mContext.getSharedPreferences(WeatherCommandHandler.SHARED_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return mPreferences.getInt(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return mPreferences.getBoolean(key, defValue);
+    }
+
+    /**
+     * SharedPreferences only holds its listeners weakly, so this platform registers itself and
+     * keeps the real listeners here.
+     */
+    @Override
+    public synchronized void registerListener(Listener listener) {
+        if (mListeners.isEmpty()) {
+            mPreferences.registerOnSharedPreferenceChangeListener(this);
+        }
+        mListeners.addIfAbsent(listener);
+    }
+
+    @Override
+    public synchronized void unregisterListener(Listener listener) {
+        if (mListeners.remove(listener) && mListeners.isEmpty()) {
+            mPreferences.unregisterOnSharedPreferenceChangeListener(this);
+        }
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+        for (Listener listener : mListeners) {
+            listener.onConfigChanged(this, key);
+        }
+    }
+
+    @Override
+    public File getLogDirectory() {
+        return mContext.getFilesDir();
+    }
+
+    @Override
+    public boolean isLoggable(String tag, int priority) {
+        return Log.isLoggable(tag, priority);
+    }
+
+    @Override
+    public void log(int priority, String tag, String message, Throwable tr) {
+        if (tr != null) {
+            message = message + '\n' + Log.getStackTraceString(tr);
+        }
+        Log.println(priority, tag, message);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public String formatDateTime(long millis) {
+        return DateUtils.formatDateTime(mContext, millis, DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded byte buffer between a thread writing a streamed response body and the event loop
+ * sending it.  The writer blocks while the pipe is full, so a slow client holds back generation
+ * instead of letting the body pile up in memory.  The event loop never blocks: read() returns 0
+ * when the pipe is empty, and the Listener is told once more data, or the end, is available.
+ */
+class BodyPipe {
+    interface Listener {
+        /**
+         * Called on the writing thread when read() has something new to return after having
+         * returned 0.
+         */
+        void onReadable();
+    }
+
+    private final byte[] mBuffer;
+    private final Listener mListener;
+    private int mReadPos;
+    private int mCount;
+    private boolean mClosed;
+    private boolean mAborted;
+    private IOException mFailure;
+    private boolean mReaderWaiting;
+
+    BodyPipe(int capacity, Listener listener) {
+        mBuffer = new byte[capacity];
+        mListener = listener;
+    }
+
+    /**
+     * The writing end.  Writes block while the pipe is full and fail once the reader has
+     * aborted.
+     */
+    final OutputStream mOut = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int written = put(b, off, len);
+                off += written;
+                len -= written;
+            }
+        }
+
+        @Override
+        public void close() {
+            finish(null);
+        }
+    };
+
+    private int put(byte[] b, int off, int len) throws IOException {
+        boolean notify;
+        int n;
+        synchronized (this) {
+            while (mCount == mBuffer.length && !mAborted) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while writing the response body");
+                }
+            }
+            if (mAborted) {
+                throw new IOException("Connection closed while writing the response body");
+            }
+            int writePos = (mReadPos + mCount) % mBuffer.length;
+            n = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - writePos));
+            System.arraycopy(b, off, mBuffer, writePos, n);
+            mCount += n;
+            notify = mReaderWaiting;
+            mReaderWaiting = false;
+        }
+        if (notify) {
+            mListener.onReadable();
+        }
+        return n;
+    }
+
+    /**
+     * Ends the body, normally if failure is null.
+     */
+    void finish(IOException failure) {
+        boolean notify;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mFailure = failure;
+            notify = mReaderWaiting;
+            mReaderWaiting = false;
+        }
+        if (notify) {
+            mListener.onReadable();
+        }
+    }
+
+    /**
+     * Called by the reader when it gives up, so the writer stops.
+     */
+    synchronized void abort() {
+        mAborted = true;
+        notifyAll();
+    }
+
+    /**
+     * @return the number of bytes moved into dst, 0 if none are available yet, or -1 at the end
+     * of the body
+     * @throws IOException if the body could not be written in full
+     */
+    synchronized int read(ByteBuffer dst) throws IOException {
+        if (mCount == 0) {
+            if (mClosed) {
+                if (mFailure != null) {
+                    throw mFailure;
+                }
+                return -1;
+            }
+            mReaderWaiting = true;
+            return 0;
+        }
+        int total = 0;
+        while (mCount > 0 && dst.hasRemaining()) {
+            int n = Math.min(dst.remaining(), Math.min(mCount, mBuffer.length - mReadPos));
+            dst.put(mBuffer, mReadPos, n);
+            mReadPos = (mReadPos + n) % mBuffer.length;
+            mCount -= n;
+            total += n;
+        }
+        notifyAll();
+        return total;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * One request as recorded by TrafficCapture, and the compact binary format capture files use.
+ * A file is a header followed by one entry per request:
+ *
+ *   header   int MAGIC, byte VERSION, long capture start in milliseconds since the epoch
+ *   entry    varlong  arrival time minus the previous entry's, in microseconds, zigzag encoded
+ *                     since entries from different connections may be queued slightly out of order
+ *            varlong  connection id, the same for every request carried by one connection
+ *            string   method, string request target, string protocol version
+ *            varint   header count, then a name string and a value string for each
+ *
+ * Strings repeat heavily (header names, user agents, popular queries), so each is written as a
+ * varint: 0 followed by the length and UTF-8 bytes of a new string, which joins a table of up to
+ * MAX_STRINGS, or n for the n-th string in that table.  A reader stops at the first incomplete
+ * entry, so a file cut short by a crash still reads back.
+ */
+final class CapturedRequest {
+    static final int MAGIC = 0x53575443;    // "SWTC"
+    static final byte VERSION = 1;
+    static final int MAX_STRINGS = 4096;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // arrival, in microseconds since the capture started
+    long mTimeMicros;
+    long mConnection;
+    String mMethod;
+    String mUri;
+    String mProtocol;
+    // names at even indices, each followed by its value
+    String[] mHeaders;
+
+    CapturedRequest(long timeMicros, long connection, String method, String uri, String protocol,
+                    String[] headers) {
+        mTimeMicros = timeMicros;
+        mConnection = connection;
+        mMethod = method;
+        mUri = uri;
+        mProtocol = protocol;
+        mHeaders = headers;
+    }
+
+    /**
+     * Writes a capture file.  Not thread safe.
+     */
+    static class Encoder {
+        private final DataOutputStream mOut;
+        private final HashMap<String, Integer> mStrings = new HashMap<String, Integer>();
+        private long mLastTimeMicros;
+
+        Encoder(DataOutputStream out, long startMillis) throws IOException {
+            mOut = out;
+            mOut.writeInt(MAGIC);
+            mOut.writeByte(VERSION);
+            mOut.writeLong(startMillis);
+        }
+
+        void write(CapturedRequest request) throws IOException {
+            long delta = request.mTimeMicros - mLastTimeMicros;
+            mLastTimeMicros = request.mTimeMicros;
+            writeVarLong((delta << 1) ^ (delta >> 63));
+            writeVarLong(request.mConnection);
+            writeString(request.mMethod);
+            writeString(request.mUri);
+            writeString(request.mProtocol);
+            writeVarLong(request.mHeaders.length / 2);
+            for (String s : request.mHeaders) {
+                writeString(s);
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            Integer index = mStrings.get(s);
+            if (index != null) {
+                writeVarLong(index + 1);
+                return;
+            }
+            byte[] bytes = s.getBytes(UTF_8);
+            writeVarLong(0);
+            writeVarLong(bytes.length);
+            mOut.write(bytes);
+            if (mStrings.size() < MAX_STRINGS) {
+                mStrings.put(s, mStrings.size());
+            }
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7fL) != 0) {
+                mOut.writeByte((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mOut.writeByte((int) value);
+        }
+    }
+
+    /**
+     * Reads a capture file written by Encoder.
+     */
+    static class Decoder {
+        private final DataInputStream mIn;
+        private final long mStartMillis;
+        private final List<String> mStrings = new ArrayList<String>();
+        private long mLastTimeMicros;
+
+        /**
+         * @throws IOException if the stream doesn't start with a capture header
+         */
+        Decoder(DataInputStream in) throws IOException {
+            mIn = in;
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Not a traffic capture");
+            }
+            mStartMillis = in.readLong();
+        }
+
+        /**
+         * @return when the capture started, in milliseconds since the epoch
+         */
+        long getStartMillis() {
+            return mStartMillis;
+        }
+
+        /**
+         * @return the next request, or null at the end of the file or at an incomplete entry
+         */
+        CapturedRequest read() throws IOException {
+            try {
+                long zigzag = readVarLong();
+                mLastTimeMicros += (zigzag >>> 1) ^ -(zigzag & 1);
+                long connection = readVarLong();
+                String method = readString();
+                String uri = readString();
+                String protocol = readString();
+                int count = (int) readVarLong();
+                String[] headers = new String[count * 2];
+                for (int i = 0; i < headers.length; i++) {
+                    headers[i] = readString();
+                }
+                return new CapturedRequest(mLastTimeMicros, connection, method, uri, protocol, headers);
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        private String readString() throws IOException {
+            int index = (int) readVarLong();
+            if (index > 0) {
+                if (index > mStrings.size()) {
+                    throw new IOException("Unknown string " + index);
+                }
+                return mStrings.get(index - 1);
+            }
+            byte[] bytes = new byte[(int) readVarLong()];
+            mIn.readFully(bytes);
+            String s = new String(bytes, UTF_8);
+            if (mStrings.size() < MAX_STRINGS) {
+                mStrings.add(s);
+            }
+            return s;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = mIn.readUnsignedByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+    }
+}
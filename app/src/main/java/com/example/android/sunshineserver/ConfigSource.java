@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+/**
+ * Where the server reads its settings from: SharedPreferences written by ServerControl on a
+ * device, or command line options and a properties file on a plain JVM.  Keys are the
+ * WeatherCommandHandler.PREF_* names.  Settings are read rarely, through ServerConfigMonitor,
+ * so implementations need not be fast.
+ */
+public interface ConfigSource {
+    /**
+     * Told when a setting changes, on whichever thread changed it.
+     */
+    interface Listener {
+        void onConfigChanged(ConfigSource source, String key);
+    }
+
+    int getInt(String key, int defValue);
+
+    boolean getBoolean(String key, boolean defValue);
+
+    void registerListener(Listener listener);
+
+    void unregisterListener(Listener listener);
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpRequest;
+import org.apache.http.NameValuePair;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Accept-Encoding negotiation and the matching compressing streams.
+ */
+final class ContentEncoding {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    static final String ACCEPT_ENCODING = "Accept-Encoding";
+    static final String CONTENT_ENCODING = "Content-Encoding";
+    static final String VARY = "Vary";
+    static final String ETAG = "ETag";
+
+    private static final int BUFFER_SIZE = 4 * 1024;
+
+    private ContentEncoding() {
+    }
+
+    /**
+     * @return the entity tag of entityTag's representation compressed with encoding, which as a
+     * strong tag must differ from the uncompressed one
+     */
+    static String variantTag(String entityTag, String encoding) {
+        int end = entityTag.endsWith("\"") ? entityTag.length() - 1 : entityTag.length();
+        return entityTag.substring(0, end) + "-" + encoding + entityTag.substring(end);
+    }
+
+    /**
+     * @return GZIP or DEFLATE, whichever the client prefers, or null to send the body as is
+     */
+    static String negotiate(HttpRequest request) {
+        if (request == null) {
+            return null;
+        }
+        float gzip = -1, deflate = -1, any = -1;
+        for (Header header : request.getHeaders(ACCEPT_ENCODING)) {
+            for (HeaderElement element : header.getElements()) {
+                float q = quality(element);
+                String name = element.getName();
+                if (GZIP.equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                    gzip = Math.max(gzip, q);
+                } else if (DEFLATE.equalsIgnoreCase(name)) {
+                    deflate = Math.max(deflate, q);
+                } else if ("*".equals(name)) {
+                    any = q;
+                }
+            }
+        }
+        // a wildcard covers whichever codings weren't named
+        if (gzip < 0) gzip = any;
+        if (deflate < 0) deflate = any;
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    private static float quality(HeaderElement element) {
+        NameValuePair q = element.getParameterByName("q");
+        if (q == null || q.getValue() == null) {
+            return 1;
+        }
+        try {
+            return Float.parseFloat(q.getValue());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return a Deflater for the given coding; whoever creates one must end() it, as streams
+     * wrapping a Deflater they were given never free its native memory themselves
+     */
+    static Deflater newDeflater(String encoding) {
+        // gzip frames raw deflate data itself, see GzipStream
+        return new Deflater(Deflater.DEFAULT_COMPRESSION, GZIP.equals(encoding));
+    }
+
+    /**
+     * Wraps out so that everything written to it is compressed with the given coding, using a
+     * Deflater from newDeflater(encoding).  Finishing the returned stream writes the trailer.
+     */
+    static DeflaterOutputStream compressing(OutputStream out, String encoding, Deflater deflater)
+            throws IOException {
+        if (GZIP.equals(encoding)) {
+            return new GzipStream(out, deflater);
+        }
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+    }
+
+    static byte[] compress(byte[] body, String encoding) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+        Deflater deflater = newDeflater(encoding);
+        try {
+            DeflaterOutputStream compressor = compressing(out, encoding, deflater);
+            compressor.write(body);
+            compressor.finish();
+        } catch (IOException e) {
+            // can't happen writing to memory
+            throw new IllegalStateException(e);
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * GZIPOutputStream only takes a Deflater of its own, which is freed on close() alone, so this
+     * writes the same header and trailer around a Deflater it is given.
+     */
+    private static final class GzipStream extends DeflaterOutputStream {
+        // magic, deflate, no flags, no mtime, no extra flags, unknown OS
+        private static final byte[] HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+        private final CRC32 mCrc = new CRC32();
+
+        GzipStream(OutputStream out, Deflater deflater) throws IOException {
+            super(out, deflater, BUFFER_SIZE);
+            out.write(HEADER);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            mCrc.update(b, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (def.finished()) {
+                return;
+            }
+            super.finish();
+            byte[] trailer = new byte[8];
+            writeIntLE(trailer, 0, mCrc.getValue());
+            writeIntLE(trailer, 4, def.getBytesRead());
+            out.write(trailer);
+        }
+
+        private static void writeIntLE(byte[] b, int off, long value) {
+            for (int i = 0; i < 4; i++) {
+                b[off + i] = (byte) (value >>> (8 * i));
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Rendered forecasts by location, so that repeated queries for a place get the same forecast
+ * until it expires.  The cache holds at most a fixed number of locations, evicting the least
+ * recently used, and an entry expires a given time after it was generated.
+ *
+ * Generation is single-flight: the first request to miss on a location generates the forecast
+ * on its own thread, and concurrent requests for the same location wait for that result instead
+ * of generating their own.  The lock guards only the map lookup, never generation.  It is a
+ * ReentrantLock rather than a monitor so that a virtual thread waiting for it doesn't pin its
+ * carrier.
+ */
+class ForecastCache {
+    static final int DEFAULT_MAX_ENTRIES = 256;
+
+    interface Loader {
+        /**
+         * @param location the normalized location, as returned by normalizeLocation()
+         * @return the rendered forecast; the cache shares it between requests, so it must not
+         * be modified afterwards
+         */
+        byte[] load(String location) throws Exception;
+    }
+
+    private static class CachedForecast {
+        final FutureTask<byte[]> mTask;
+        final long mCreated;
+
+        CachedForecast(FutureTask<byte[]> task, long created) {
+            mTask = task;
+            mCreated = created;
+        }
+    }
+
+    private final Loader mLoader;
+    private final LinkedHashMap<String, CachedForecast> mEntries;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    ForecastCache(final int maxEntries, Loader loader) {
+        mLoader = loader;
+        // access order, so iteration starts at the least recently used entry
+        mEntries = new LinkedHashMap<String, CachedForecast>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedForecast> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Reduces the ways of writing a location to one key: city searches are lower-cased with
+     * whitespace collapsed, and coordinates are rounded to two decimal places, about a kilometre.
+     */
+    static String normalizeLocation(String location) {
+        int comma = location.indexOf(',');
+        if (comma > 0 && location.indexOf(',', comma + 1) < 0) {
+            try {
+                double lat = Double.parseDouble(location.substring(0, comma).trim());
+                double lon = Double.parseDouble(location.substring(comma + 1).trim());
+                return String.format(Locale.US, "%.2f,%.2f", lat, lon);
+            } catch (NumberFormatException e) {
+                // a place name with a country, like "London,uk"
+            }
+        }
+        StringBuilder sb = new StringBuilder(location.length());
+        boolean space = false;
+        for (int i = 0; i < location.length(); i++) {
+            char c = location.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+            } else {
+                if (c == ',') {
+                    space = false;
+                } else if (space && sb.charAt(sb.length() - 1) != ',') {
+                    sb.append(' ');
+                }
+                space = false;
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param location a location as returned by normalizeLocation()
+     * @param now      the current time, in milliseconds
+     * @param ttl      how long a generated forecast is served, in milliseconds
+     * @return the cached forecast for the location, generating it if needed; do not modify
+     */
+    byte[] get(final String location, long now, long ttl) throws Exception {
+        FutureTask<byte[]> task;
+        boolean generate = false;
+        mLock.lock();
+        try {
+            CachedForecast entry = mEntries.get(location);
+            if (entry == null || now - entry.mCreated >= ttl) {
+                task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return mLoader.load(location);
+                    }
+                });
+                entry = new CachedForecast(task, now);
+                mEntries.put(location, entry);
+                generate = true;
+            } else {
+                task = entry.mTask;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (generate) {
+            mMisses.incrementAndGet();
+            task.run();
+        } else {
+            mHits.incrementAndGet();
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            // don't keep serving the failure; the next request tries again
+            mLock.lock();
+            try {
+                CachedForecast entry = mEntries.get(location);
+                if (entry != null && entry.mTask == task) {
+                    mEntries.remove(location);
+                }
+            } finally {
+                mLock.unlock();
+            }
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    int size() {
+        mLock.lock();
+        try {
+            return mEntries.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    long getMissCount() {
+        return mMisses.get();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Writes forecast JSON straight into a reusable UTF-8 byte buffer.  Field names and the fixed
+ * parts of each day entry are encoded once, and numbers are written digit by digit with a fixed
+ * number of decimals, so writing a day allocates nothing.  Numbers are always written with a '.'
+ * decimal separator, whatever the device locale.
+ *
+ * A writer is not thread safe; use one per thread, or one per response.
+ */
+class ForecastJsonWriter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000, 100000, 1000000 };
+
+    // the fixed text of a day entry, in the order it is written
+    static final byte[] DAY_START = ascii("{\"dt\":");
+    private static final byte[] DAY_TEMP_MIN = ascii(",\"temp\":{\"day\":29.49,\"min\":");
+    private static final byte[] DAY_TEMP_MAX = ascii(",\"max\":");
+    private static final byte[] DAY_PRESSURE = ascii(",\"night\":9.52,\"eve\":21.09,\"morn\":15.42},\"pressure\":");
+    private static final byte[] DAY_HUMIDITY = ascii(",\"humidity\":");
+    private static final byte[] DAY_WEATHER_ID = ascii(",\"weather\":[{\"id\":");
+    private static final byte[] DAY_MAIN = ascii(",\"main\":");
+    private static final byte[] DAY_DESCRIPTION = ascii(",\"description\":");
+    private static final byte[] DAY_ICON = ascii(",\"icon\":");
+    private static final byte[] DAY_SPEED = ascii("}],\"speed\":");
+    private static final byte[] DAY_DEG = ascii(",\"deg\":");
+    private static final byte[] DAY_END = ascii(",\"clouds\":20}");
+
+    private byte[] mBuffer;
+    private int mCount;
+
+    ForecastJsonWriter(int initialCapacity) {
+        mBuffer = new byte[initialCapacity];
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(UTF_8);
+    }
+
+    void reset() {
+        mCount = 0;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer, mCount);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(mBuffer, 0, mCount);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mCount + extra > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mCount + extra));
+        }
+    }
+
+    ForecastJsonWriter raw(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, mBuffer, mCount, bytes.length);
+        mCount += bytes.length;
+        return this;
+    }
+
+    ForecastJsonWriter raw(char c) {
+        ensureCapacity(1);
+        mBuffer[mCount++] = (byte) c;
+        return this;
+    }
+
+    ForecastJsonWriter number(long value) {
+        ensureCapacity(20);
+        if (value < 0) {
+            mBuffer[mCount++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int i = mCount + digits;
+        mCount = i;
+        do {
+            mBuffer[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        return this;
+    }
+
+    /**
+     * Writes value rounded half-up to the given number of decimals, like "%.2f" in Locale.US.
+     * Values that sit exactly on a decimal tie may round down where Formatter rounds up, since
+     * the rounding works on the binary value rather than its shortest decimal form.
+     */
+    ForecastJsonWriter fixed(double value, int decimals) {
+        if (value < 0) {
+            raw('-');
+            value = -value;
+        }
+        long scale = POWERS_OF_TEN[decimals];
+        long scaled = Math.round(value * scale);
+        number(scaled / scale);
+        if (decimals > 0) {
+            long fraction = scaled % scale;
+            ensureCapacity(decimals + 1);
+            mBuffer[mCount++] = '.';
+            int i = mCount + decimals;
+            mCount = i;
+            for (int d = 0; d < decimals; d++) {
+                mBuffer[--i] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes a quoted JSON string.  Plain ASCII is written without allocating.
+     */
+    ForecastJsonWriter string(String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80 || c < 0x20 || c == '"' || c == '\\') {
+                return raw('"').raw(escape(s).getBytes(UTF_8)).raw('"');
+            }
+        }
+        ensureCapacity(length + 2);
+        mBuffer[mCount++] = '"';
+        for (int i = 0; i < length; i++) {
+            mBuffer[mCount++] = (byte) s.charAt(i);
+        }
+        mBuffer[mCount++] = '"';
+        return this;
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes one entry of the daily forecast "list" array.
+     *
+     * @param dt the day's timestamp, in seconds
+     */
+    ForecastJsonWriter day(long dt, double lowTemp, double highTemp, double pressure, double humidity,
+                           int weatherId, double windSpeed, int direction) {
+        return raw(DAY_START).number(dt)
+                .dayTail(lowTemp, highTemp, pressure, humidity, weatherId, windSpeed, direction);
+    }
+
+    /**
+     * Writes everything in a day entry after its "dt" value.
+     */
+    ForecastJsonWriter dayTail(double lowTemp, double highTemp, double pressure, double humidity,
+                               int weatherId, double windSpeed, int direction) {
+        byte[] condition = WeatherConditions.getNameJson(weatherId);
+        return raw(DAY_TEMP_MIN).fixed(lowTemp, 2)
+                .raw(DAY_TEMP_MAX).fixed(highTemp, 2)
+                .raw(DAY_PRESSURE).fixed(pressure, 2)
+                .raw(DAY_HUMIDITY).fixed(humidity, 0)
+                .raw(DAY_WEATHER_ID).number(weatherId)
+                .raw(DAY_MAIN).raw(condition)
+                .raw(DAY_DESCRIPTION).raw(condition)
+                .raw(DAY_ICON).raw(WeatherConditions.getIconJson(weatherId))
+                .raw(DAY_SPEED).fixed(windSpeed, 2)
+                .raw(DAY_DEG).number(direction)
+                .raw(DAY_END);
+    }
+}
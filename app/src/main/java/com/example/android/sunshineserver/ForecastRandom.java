@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+/**
+ * A small, unsynchronized SplitMix64 generator for random forecasts.  Unlike Math.random(),
+ * which funnels every thread through one shared Random, each thread or request owns its own
+ * instance.  A generator can be re-seeded from (seed, location, day) so that seeded requests
+ * always produce the same forecast.
+ *
+ * SplittableRandom and ThreadLocalRandom would do the same job but aren't available on every
+ * API level this app supports.
+ */
+final class ForecastRandom {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long mState;
+
+    ForecastRandom(long seed) {
+        mState = seed;
+    }
+
+    /**
+     * Seeds this generator for one day of a seeded forecast.
+     *
+     * @param day the day's position in the forecast, so results don't depend on today's date
+     */
+    void setSeed(long seed, String location, int day) {
+        mState = mix(mix(seed ^ location.hashCode()) + day * GOLDEN_GAMMA);
+    }
+
+    long nextLong() {
+        return mix(mState += GOLDEN_GAMMA);
+    }
+
+    /**
+     * @return a uniformly distributed value in [0, 1)
+     */
+    double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A forecast that is generated as it is written, for day counts too large to render up front.
+ * Days are written into a small ForecastJsonWriter that is handed to the output stream each time
+ * it fills up, so memory use stays at about FLUSH_BYTES whatever the number of days.  The
+ * length isn't known in advance, so the entity is sent chunked.
+ */
+class ForecastStreamEntity extends AbstractHttpEntity {
+    static final int FLUSH_BYTES = 8 * 1024;
+
+    interface DaySource {
+        /**
+         * Writes day number day of the forecast, counting from 0.
+         */
+        void writeDay(ForecastJsonWriter writer, int day);
+    }
+
+    private final byte[] mHead;
+    private final int mDays;
+    private final DaySource mSource;
+    private final byte[] mTail;
+
+    /**
+     * @param head everything before the first day
+     * @param tail everything after the last day
+     */
+    ForecastStreamEntity(byte[] head, int days, DaySource source, byte[] tail) {
+        mHead = head;
+        mDays = days;
+        mSource = source;
+        mTail = tail;
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public InputStream getContent() {
+        throw new UnsupportedOperationException("Forecast streams can only be written");
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        ForecastJsonWriter writer = new ForecastJsonWriter(FLUSH_BYTES + 1024);
+        writer.raw(mHead);
+        for (int day = 0; day < mDays; day++) {
+            if (day > 0) writer.raw(',');
+            mSource.writeDay(writer, day);
+            if (writer.size() >= FLUSH_BYTES) {
+                writer.writeTo(out);
+                writer.reset();
+            }
+        }
+        writer.raw(mTail);
+        writer.writeTo(out);
+        out.flush();
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves forecasts for many cities at once, like OpenWeatherMap's group endpoint:
+ * /data/2.5/group?id=5375480,2643743,...  The response lists one daily forecast per city id, in
+ * the order the ids were given.
+ *
+ * Small responses are rendered up front.  Wider ones are generated while they are sent, a slice
+ * of about SLICE_CITY_DAYS city-days at a time, like ForecastStreamEntity, so a response holds a
+ * few slices in memory however many cities it lists.  Random slices are rendered in parallel on
+ * generator threads, a bounded number ahead of the one being written, and written in order.
+ */
+class GroupCommandHandler implements HttpRequestHandler {
+    static final int MAX_GROUP_IDS = 1000;
+
+    // responses with more city-days than this are generated while they are sent
+    static final int MAX_BUFFERED_CITY_DAYS = WeatherCommandHandler.MAX_BUFFERED_DAYS;
+    // about how many city-days a streamed response renders at a time; a slice holds whole cities
+    static final int SLICE_CITY_DAYS = 64;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] GROUP_HEADER = ForecastJsonWriter.ascii("{\"cod\":\"200\",\"cnt\":");
+    private static final byte[] GROUP_LIST = ForecastJsonWriter.ascii(",\"list\":[");
+    private static final byte[] CITY_ID = ForecastJsonWriter.ascii("{\"city\":{\"id\":");
+    private static final byte[] CITY_NAME = ForecastJsonWriter.ascii(",\"name\":\"City ");
+    private static final byte[] CITY_DAYS = ForecastJsonWriter.ascii("\"},\"cnt\":");
+    private static final byte[] CITY_LIST = ForecastJsonWriter.ascii(",\"list\":[");
+    private static final byte[] CITY_END = ForecastJsonWriter.ascii("]}");
+    private static final byte[] GROUP_FOOTER = ForecastJsonWriter.ascii("]}");
+
+    private final ServerClock mClock;
+    private final WeatherCommandHandler mForecasts;
+    private final ServerConfigMonitor mConfig;
+    private final RequestLog mRequestLog;
+    private final ThreadPoolExecutor mGenerators;
+
+    GroupCommandHandler(ServerClock clock, WeatherCommandHandler forecasts, ServerConfigMonitor config,
+                        RequestLog requestLog) {
+        mClock = clock;
+        mForecasts = forecasts;
+        mConfig = config;
+        mRequestLog = requestLog;
+        final AtomicInteger threadCount = new AtomicInteger();
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        mGenerators = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "GroupCommandHandler-generator-" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // idle generators cost nothing between group requests
+        mGenerators.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the ids in a comma separated list, or null if any of them is not a number
+     */
+    static int[] parseIds(String list) {
+        if (list == null || list.trim().length() == 0) {
+            return null;
+        }
+        String[] parts = list.split(",");
+        int[] ids = new int[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                ids[i] = Integer.parseInt(parts[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ids;
+    }
+
+    @Override
+    public void handle(HttpRequest request, HttpResponse response, HttpContext httpContext)
+            throws HttpException, IOException {
+        ServerConfig serverConfig = mConfig.get();
+        int mode = serverConfig.getServerMode();
+        long time = mClock.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        ServerMetrics.tag(httpContext, ServerMetrics.ROUTE_GROUP, mode);
+        QueryParams params = QueryParams.forContext(httpContext).parse(request.getRequestLine().getUri());
+        String idList = params.get(QueryParams.ID);
+        int[] ids = parseIds(idList);
+
+        int responseCode = mode == WeatherCommandHandler.SERVER_MODE_ERROR ? serverConfig.getErrorCode()
+                : ids == null || ids.length > MAX_GROUP_IDS ? 400 : 200;
+        response.setStatusCode(responseCode);
+        response.setHeader("Content-Type", WeatherCommandHandler.CONTENT_TYPE_JSON);
+        try {
+            if (mode == WeatherCommandHandler.SERVER_MODE_ERROR || responseCode != 200) {
+                response.setEntity(new ByteArrayEntity(WeatherCommandHandler.getErrorResponse(responseCode).getBytes(UTF_8)));
+                return;
+            }
+            // a slice holds at least one whole city, so each city is kept to what a buffered
+            // forecast allows
+            int days = Math.min(WeatherCommandHandler.parseDayCount(params, serverConfig.getForecastDays()),
+                    WeatherCommandHandler.MAX_BUFFERED_DAYS);
+            Long seed = mode == WeatherCommandHandler.SERVER_MODE_STATIC ? null
+                    : params.getLong(QueryParams.SEED);
+            if ((long) ids.length * days <= MAX_BUFFERED_CITY_DAYS) {
+                ForecastJsonWriter writer = new ForecastJsonWriter(ForecastStreamEntity.FLUSH_BYTES);
+                writeHead(writer, ids.length);
+                renderSlice(writer, ids, 0, ids.length, mode, days, seed, time);
+                writer.raw(GROUP_FOOTER);
+                response.setEntity(new ByteArrayEntity(writer.toByteArray()));
+            } else {
+                response.setEntity(new GroupStreamEntity(ids, mode, days, seed, time));
+            }
+        } finally {
+            long latencyMicros = (System.nanoTime() - startNanos) / 1000;
+            mRequestLog.log(time, mode, responseCode, (int) Math.min(latencyMicros, Integer.MAX_VALUE),
+                    "group:" + (idList == null ? "" : idList));
+        }
+    }
+
+    private static void writeHead(ForecastJsonWriter writer, int cities) {
+        writer.raw(GROUP_HEADER).number(cities).raw(GROUP_LIST);
+    }
+
+    /**
+     * @return how many cities a streamed response renders at a time
+     */
+    static int citiesPerSlice(int days) {
+        return Math.max(1, SLICE_CITY_DAYS / days);
+    }
+
+    /**
+     * Writes the forecasts of ids[from] to ids[to - 1], each preceded by a comma unless it is the
+     * first city of the response.
+     */
+    private void renderSlice(ForecastJsonWriter writer, int[] ids, int from, int to, int mode, int days,
+                             Long seed, long time) {
+        ForecastRandom random = seed != null ? new ForecastRandom(seed) : WeatherCommandHandler.getThreadRandom();
+        for (int c = from; c < to; c++) {
+            int id = ids[c];
+            if (c > 0) writer.raw(',');
+            writer.raw(CITY_ID).number(id).raw(CITY_NAME).number(id).raw(CITY_DAYS).number(days).raw(CITY_LIST);
+            String location = Integer.toString(id);
+            for (int day = 0; day < days; day++) {
+                if (day > 0) writer.raw(',');
+                if (mode == WeatherCommandHandler.SERVER_MODE_STATIC) {
+                    WeatherCommandHandler.writeStaticDay(writer, WeatherCommandHandler.startOfDay(time), day);
+                } else {
+                    // with a seed, each (seed, city, day) always generates the same day
+                    if (seed != null) random.setSeed(seed, location, day);
+                    mForecasts.generateDailyWeather(writer, random, (time + day * WeatherCommandHandler.DAY_IN_MILLIS) / 1000);
+                }
+            }
+            writer.raw(CITY_END);
+        }
+    }
+
+    /**
+     * A group response that is generated as it is written, one slice of citiesPerSlice() cities
+     * at a time.  Static slices are only copies, so they are rendered on the writing thread;
+     * random ones are rendered on the generators, at most one per generator ahead of the slice
+     * being written.  The length isn't known in advance, so the entity is sent chunked.
+     */
+    private class GroupStreamEntity extends AbstractHttpEntity {
+        private final int[] mIds;
+        private final int mMode;
+        private final int mDays;
+        private final Long mSeed;
+        private final long mTime;
+
+        GroupStreamEntity(int[] ids, int mode, int days, Long seed, long time) {
+            mIds = ids;
+            mMode = mode;
+            mDays = days;
+            mSeed = seed;
+            mTime = time;
+            setChunked(true);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException("Group responses can only be written");
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            ForecastJsonWriter writer = new ForecastJsonWriter(ForecastStreamEntity.FLUSH_BYTES);
+            writeHead(writer, mIds.length);
+            int perSlice = citiesPerSlice(mDays);
+            int ahead = mGenerators.getMaximumPoolSize();
+            if (mMode == WeatherCommandHandler.SERVER_MODE_STATIC || ahead <= 1) {
+                for (int from = 0; from < mIds.length; from += perSlice) {
+                    renderSlice(writer, mIds, from, Math.min(mIds.length, from + perSlice), mMode, mDays, mSeed, mTime);
+                    writer.writeTo(out);
+                    writer.reset();
+                }
+            } else {
+                writer.writeTo(out);
+                writeParallel(out, perSlice, ahead);
+                writer.reset();
+            }
+            writer.raw(GROUP_FOOTER);
+            writer.writeTo(out);
+            out.flush();
+        }
+
+        private void writeParallel(OutputStream out, int perSlice, int ahead) throws IOException {
+            ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>(ahead);
+            int next = 0;
+            try {
+                while (next < mIds.length || !pending.isEmpty()) {
+                    while (next < mIds.length && pending.size() < ahead) {
+                        pending.add(mGenerators.submit(renderTask(next, Math.min(mIds.length, next + perSlice))));
+                        next += perSlice;
+                    }
+                    out.write(pending.poll().get());
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while generating forecasts");
+            } catch (ExecutionException e) {
+                throw new IOException("Forecast generation failed", e.getCause());
+            } finally {
+                // the client may have gone away; don't render what will never be sent
+                for (Future<byte[]> slice : pending) {
+                    slice.cancel(false);
+                }
+            }
+        }
+
+        private Callable<byte[]> renderTask(final int from, final int to) {
+            return new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    ForecastJsonWriter writer = new ForecastJsonWriter(ForecastStreamEntity.FLUSH_BYTES);
+                    renderSlice(writer, mIds, from, to, mMode, mDays, mSeed, mTime);
+                    return writer.toByteArray();
+                }
+            };
+        }
+    }
+}
@@ -16,17 +16,39 @@
 package com.example.android.sunshineserver;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.HttpConnectionMetrics;
 import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.DefaultHttpResponseFactory;
 import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandlerRegistry;
 import org.apache.http.protocol.HttpService;
 import org.apache.http.protocol.ResponseConnControl;
@@ -34,65 +56,351 @@ import org.apache.http.protocol.ResponseContent;
 import org.apache.http.protocol.ResponseDate;
 import org.apache.http.protocol.ResponseServer;
 
-import android.content.Context;
-
 public class HttpServer {
+    static private final String LOG_TAG = HttpServer.class.getSimpleName();
+
+    // which accept loop serves connections, chosen when the server starts
+    public static final int ENGINE_BLOCKING = 0;    // ServerSocket plus the worker pool
+    public static final int ENGINE_NIO = 1;         // ServerSocketChannel plus Selector event loops
 
-    public static boolean sRunning = false;
+    public static volatile boolean sRunning = false;
     public static int sServerPort = 8088;
     private static Thread sServerThread;
 
+    // what to do with an accepted connection when every worker is busy and the queue is full
+    public static final int REJECT_POLICY_CALLER_RUNS = 0;  // serve it on the accept thread
+    public static final int REJECT_POLICY_CLOSE = 1;        // drop the connection immediately
+    public static final int REJECT_POLICY_SHED = 2;         // answer 503 from the accept thread
+
+    // what runs each connection accepted by the blocking engine, chosen when the server starts
+    public static final int WORKERS_POOL = 0;               // a fixed pool of sWorkerThreads threads
+    public static final int WORKERS_VIRTUAL_THREADS = 1;    // a new virtual thread each, on Java 21+
+
+    public static int sWorkerMode = WORKERS_POOL;
+    public static int sWorkerThreads = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+    public static int sWorkerQueueDepth = 64;
+    public static int sRejectPolicy = REJECT_POLICY_SHED;
+
+    // how many connections the kernel queues before accept() picks them up
+    public static int sAcceptBacklog = 50;
+
+    // admission control: requests in flight at once, read when the server is created, and when
+    // shed clients are told to retry
+    public static int sMaxConcurrentRequests = 64;
+    public static int sRetryAfterSeconds = 1;
+
+    // the engine to serve with, unless network shaping is on; see chooseEngine()
+    public static int sServerEngine = ENGINE_BLOCKING;
+    public static int sEventLoopThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    // keep-alive: how long an idle connection is held open, and how many requests it may carry
+    public static int sKeepAliveTimeoutMillis = 5000;
+    public static int sMaxRequestsPerConnection = 100;
+
+    // records every request to a TrafficCapture file for TrafficReplay, read when the server is created
+    public static boolean sCaptureTraffic = false;
+
+    // the size of each connection's session buffers; left unset, httpcore sizes them from the
+    // socket's send buffer, megabytes per connection on loopback
+    private static final int SOCKET_BUFFER_SIZE = 8 * 1024;
+
+    // HttpContext attribute holding the number of requests served so far on a connection
+    static final String ATTR_REQUEST_COUNT = "sunshine.request-count";
+
     private static final String DAILY_WEATHER_PATTERN = "/data/2.5/forecast/daily";
+    private static final String GROUP_PATTERN = "/data/2.5/group";
+    private static final String METRICS_PATTERN = "/metrics";
 
-    private Context mContext = null;
+    private ServerPlatform mPlatform = null;
 
     private BasicHttpProcessor mHttpProc = null;
-    private BasicHttpContext mHttpContext = null;
     private HttpService mHttpService = null;
     private HttpRequestHandlerRegistry mRequestHandlerRegistry = null;
+    private ExecutorService mWorkers = null;
+    private NioHttpEngine mNioEngine = null;
+    private RequestLog mRequestLog = null;
+    private TrafficCapture mCapture = null;
+    private ServerConfigMonitor mConfig = null;
+    private final ServerMetrics mMetrics = new ServerMetrics();
+    private AdmissionControl mAdmission = null;
+    private int mEngine = ENGINE_BLOCKING;
 
-    public HttpServer(Context context) {
-        mContext = context;
+    // the engine is only chosen in startServer(), so shaping turned on later needs a restart
+    private final ConfigSource.Listener mEngineCheck = new ConfigSource.Listener() {
+        @Override
+        public void onConfigChanged(ConfigSource source, String key) {
+            if (mEngine != ENGINE_NIO && !ServerConfig.fromSource(source).getNetworkConditions().isUnshaped()) {
+                mPlatform.log(LogSink.WARN, LOG_TAG,
+                        "Network shaping is ignored until the server restarts on the NIO engine", null);
+            }
+        }
+    };
+
+    private final AtomicLong mConnectionsServed = new AtomicLong();
+    private final AtomicLong mRequestsServed = new AtomicLong();
+
+    public HttpServer(ServerPlatform platform) {
+        mPlatform = platform;
+        mConfig = new ServerConfigMonitor(platform);
 
         mHttpProc = new BasicHttpProcessor();
-        mHttpContext = new BasicHttpContext();
 
+        if (sCaptureTraffic) {
+            // first, so it records each request exactly as it arrived
+            mCapture = new TrafficCapture(platform);
+            mHttpProc.addRequestInterceptor(mCapture.getRequestInterceptor());
+        }
+        mHttpProc.addRequestInterceptor(mMetrics.getRequestInterceptor());
         mHttpProc.addInterceptor(new ResponseDate());
         mHttpProc.addInterceptor(new ResponseServer());
+        // compression has to come first so ResponseContent frames the compressed body
+        mHttpProc.addInterceptor(new ResponseCompression());
         mHttpProc.addInterceptor(new ResponseContent());
         mHttpProc.addInterceptor(new ResponseConnControl());
+        mHttpProc.addInterceptor(new ResponseConnectionLimit());
+        // after the protocol interceptors, so it sees the final status and times the body as it will be written
+        mHttpProc.addResponseInterceptor(mMetrics.getResponseInterceptor());
+        // after the metrics, so simulated network delays don't count as handling time
+        mHttpProc.addResponseInterceptor(new NetworkShaper(mConfig).getResponseInterceptor());
 
         mHttpService = new HttpService(mHttpProc,
                 new DefaultConnectionReuseStrategy(), new DefaultHttpResponseFactory());
 
         mRequestHandlerRegistry = new HttpRequestHandlerRegistry();
 
-        mRequestHandlerRegistry.register(DAILY_WEATHER_PATTERN, new WeatherCommandHandler(context));
+        mRequestLog = new RequestLog(platform, platform);
+        mAdmission = new AdmissionControl(sMaxConcurrentRequests, mMetrics);
+        WeatherCommandHandler weatherHandler = new WeatherCommandHandler(platform, mConfig, mRequestLog);
+        mRequestHandlerRegistry.register(DAILY_WEATHER_PATTERN, mAdmission.guard(weatherHandler));
+        mRequestHandlerRegistry.register(GROUP_PATTERN,
+                mAdmission.guard(new GroupCommandHandler(platform, weatherHandler, mConfig, mRequestLog)));
+        mRequestHandlerRegistry.register(METRICS_PATTERN, new MetricsHandler(mMetrics));
 
         mHttpService.setHandlerResolver(mRequestHandlerRegistry);
     }
 
     private ServerSocket serverSocket;
 
+    /**
+     * Asks the client to close the connection once it has carried sMaxRequestsPerConnection
+     * requests.  Runs after ResponseConnControl so it has the final say on the Connection header.
+     */
+    private static class ResponseConnectionLimit implements HttpResponseInterceptor {
+        @Override
+        public void process(HttpResponse response, HttpContext context) {
+            AtomicInteger count = (AtomicInteger) context.getAttribute(ATTR_REQUEST_COUNT);
+            if (count != null && count.incrementAndGet() >= sMaxRequestsPerConnection) {
+                response.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+            }
+        }
+    }
+
+    /**
+     * Serves a single accepted socket on a worker thread.  Each connection gets its own
+     * HttpContext so that concurrent requests never share attributes, and the connection is
+     * reused for as long as the client keeps it alive, up to sMaxRequestsPerConnection requests
+     * or sKeepAliveTimeoutMillis of idle time.
+     */
+    private class ConnectionWorker implements Runnable {
+        private final Socket mSocket;
+        private final long mAcceptedNanos;
+
+        ConnectionWorker(Socket socket) {
+            mSocket = socket;
+            mAcceptedNanos = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            onConnectionOpened(System.nanoTime() - mAcceptedNanos);
+            DefaultHttpServerConnection serverConnection = new DefaultHttpServerConnection();
+            HttpContext httpContext = new BasicHttpContext();
+            AtomicInteger requestCount = new AtomicInteger();
+            httpContext.setAttribute(ATTR_REQUEST_COUNT, requestCount);
+            try {
+                HttpParams params = new BasicHttpParams();
+                HttpConnectionParams.setSoTimeout(params, sKeepAliveTimeoutMillis);
+                HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+                serverConnection.bind(mSocket, params);
+                // HttpService closes the connection itself when the reuse strategy says so
+                while (sRunning && serverConnection.isOpen()) {
+                    mHttpService.handleRequest(serverConnection, httpContext);
+                    onResponseSent(httpContext);
+                }
+            } catch (ConnectionClosedException e) {
+                // client hung up between requests
+            } catch (SocketTimeoutException e) {
+                // idle keep-alive connection timed out
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (HttpException he) {
+                he.printStackTrace();
+            } catch (RuntimeException e) {
+                // a broken handler or interceptor costs its connection, not the worker thread
+                mPlatform.log(LogSink.ERROR, LOG_TAG, "Request failed, closing the connection", e);
+                HttpConnectionMetrics metrics = serverConnection.getMetrics();
+                if (serverConnection.isOpen() && metrics.getRequestCount() > metrics.getResponseCount()) {
+                    sendServerError(serverConnection);
+                }
+            } finally {
+                try {
+                    serverConnection.shutdown();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                onResponseSent(httpContext);
+                onConnectionClosed(requestCount.get());
+            }
+        }
+    }
+
+    /**
+     * Answers the current request with a bare 500, when nothing of its response has been sent.
+     */
+    private static void sendServerError(DefaultHttpServerConnection connection) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_0,
+                HttpStatus.SC_INTERNAL_SERVER_ERROR, "Internal Server Error");
+        response.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+        response.setHeader(HTTP.CONTENT_LEN, "0");
+        try {
+            connection.sendResponseHeader(response);
+            connection.flush();
+        } catch (IOException e) {
+            // the client has already gone
+        } catch (HttpException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param queuedNanos how long the connection waited between accept and being picked up
+     */
+    void onConnectionOpened(long queuedNanos) {
+        mMetrics.onConnectionOpened(queuedNanos);
+    }
+
+    LogSink getLogSink() {
+        return mPlatform;
+    }
+
+    /**
+     * Called once the response to a connection's current request has been sent, or given up on.
+     */
+    void onResponseSent(HttpContext context) {
+        mAdmission.release(context);
+    }
+
+    void onConnectionClosed(int requests) {
+        mMetrics.onConnectionClosed();
+        mConnectionsServed.incrementAndGet();
+        mRequestsServed.addAndGet(requests);
+        if (mPlatform.isLoggable(LOG_TAG, LogSink.VERBOSE)) {
+            mPlatform.log(LogSink.VERBOSE, LOG_TAG, "Connection closed after " + requests + " request(s)", null);
+        }
+    }
+
+    /**
+     * @return a virtual thread per connection if sWorkerMode asks for it and the JVM has them,
+     * otherwise the worker pool
+     */
+    private ExecutorService createWorkers() {
+        if (sWorkerMode == WORKERS_VIRTUAL_THREADS) {
+            // never rejects, so sWorkerQueueDepth and sRejectPolicy don't apply; admission
+            // control still bounds the requests in flight
+            ExecutorService workers = VirtualThreads.newThreadPerTaskExecutor("HttpServer-virtual-worker-", mPlatform);
+            if (workers != null) {
+                return workers;
+            }
+            mPlatform.log(LogSink.WARN, LOG_TAG, "No virtual threads on this JVM, using the worker pool", null);
+        }
+        return createWorkerPool();
+    }
+
+    private static ThreadPoolExecutor createWorkerPool() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory factory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HttpServer-worker-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        // REJECT_POLICY_SHED is handled by the accept loop, like REJECT_POLICY_CLOSE
+        RejectedExecutionHandler rejectHandler = sRejectPolicy == REJECT_POLICY_CALLER_RUNS
+                ? new ThreadPoolExecutor.CallerRunsPolicy() : new ThreadPoolExecutor.AbortPolicy();
+        return new ThreadPoolExecutor(sWorkerThreads, sWorkerThreads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, sWorkerQueueDepth)), factory, rejectHandler);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Answers a connection the worker pool has no room for with a 503, on the accept thread.
+     */
+    private void shed(Socket socket) {
+        mMetrics.onShed();
+        try {
+            AdmissionControl.writeShedResponse(socket.getOutputStream());
+            // discard what has arrived of the request, so that closing doesn't reset the connection
+            // before the client reads the response
+            InputStream in = socket.getInputStream();
+            in.skip(in.available());
+            socket.shutdownOutput();
+        } catch (IOException e) {
+            // the client has already gone
+        }
+        closeQuietly(socket);
+    }
+
+    /**
+     * @return sServerEngine, or ENGINE_NIO while network shaping is on: only the NIO engine can
+     * hold a response back without tying up a thread for the delay
+     */
+    static int chooseEngine(ServerConfig config) {
+        return config.getNetworkConditions().isUnshaped() ? sServerEngine : ENGINE_NIO;
+    }
+
+    /**
+     * @return the engine chosen when the server last started
+     */
+    public int getEngine() {
+        return mEngine;
+    }
+
     public void runServer() {
+        if (mEngine == ENGINE_NIO) {
+            runNioServer();
+            return;
+        }
+        mWorkers = createWorkers();
         sServerThread = new Thread() {
             @Override
             public void run() {
                 super.run();
                 try {
-                    serverSocket = new ServerSocket(sServerPort);
+                    serverSocket = new ServerSocket(sServerPort, sAcceptBacklog);
                     serverSocket.setReuseAddress(true);
                     while (sRunning) {
+                        Socket socket = null;
                         try {
-                            final Socket socket = serverSocket.accept();
-                            DefaultHttpServerConnection serverConnection = new DefaultHttpServerConnection();
-                            serverConnection.bind(socket, new BasicHttpParams());
-                            mHttpService.handleRequest(serverConnection, mHttpContext);
-                            serverConnection.shutdown();
+                            socket = serverSocket.accept();
+                            mWorkers.execute(new ConnectionWorker(socket));
+                        } catch (RejectedExecutionException e) {
+                            if (sRejectPolicy == REJECT_POLICY_SHED && sRunning) {
+                                shed(socket);
+                            } else {
+                                // REJECT_POLICY_CLOSE, or the pool is shutting down
+                                closeQuietly(socket);
+                            }
                         } catch (IOException e) {
                             e.printStackTrace();
-                        } catch (HttpException he) {
-                            he.printStackTrace();
                         }
                     }
                     serverSocket.close();
@@ -107,13 +415,40 @@ public class HttpServer {
         sServerThread.start();
     }
 
+    private void runNioServer() {
+        mNioEngine = new NioHttpEngine(this, mHttpProc, mRequestHandlerRegistry);
+        try {
+            mNioEngine.start(sServerPort, sEventLoopThreads);
+        } catch (IOException e) {
+            e.printStackTrace();
+            mNioEngine = null;
+            sRunning = false;
+        }
+    }
+
     public synchronized void startServer() {
         sRunning = true;
+        mConfig.start();
+        mEngine = chooseEngine(mConfig.get());
+        if (mEngine != sServerEngine) {
+            mPlatform.log(LogSink.INFO, LOG_TAG, "Network shaping is on, serving with the NIO engine", null);
+        }
+        mPlatform.registerListener(mEngineCheck);
+        mRequestLog.start();
+        if (mCapture != null) {
+            mCapture.start();
+        }
         runServer();
     }
 
     public synchronized void stopServer() {
         sRunning = false;
+        if (mNioEngine != null) {
+            mNioEngine.stop();
+            mNioEngine = null;
+            stopLogs();
+            return;
+        }
         try {
             serverSocket.close();
         } catch (IOException e) {
@@ -125,9 +460,52 @@ public class HttpServer {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        mWorkers.shutdown();
+        try {
+            mWorkers.awaitTermination(1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        stopLogs();
+    }
+
+    private void stopLogs() {
+        if (mCapture != null) {
+            mCapture.stop();
+        }
+        mRequestLog.stop();
+        mConfig.stop();
+        mPlatform.unregisterListener(mEngineCheck);
+    }
+
+    /**
+     * @return the traffic capture, or null unless sCaptureTraffic was set when the server was created
+     */
+    public TrafficCapture getTrafficCapture() {
+        return mCapture;
     }
 
     public synchronized boolean isRunning() {
         return sRunning;
     }
+
+    ServerMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public long getConnectionsServed() {
+        return mConnectionsServed.get();
+    }
+
+    public long getRequestsServed() {
+        return mRequestsServed.get();
+    }
+
+    /**
+     * @return the average number of requests carried by each closed connection
+     */
+    public double getRequestsPerConnection() {
+        long connections = mConnectionsServed.get();
+        return connections == 0 ? 0 : (double) mRequestsServed.get() / connections;
+    }
 }
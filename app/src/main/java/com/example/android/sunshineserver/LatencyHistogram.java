@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-bucket latency histogram that many threads can record into without locking.  Each
+ * record() is one bucket search over a dozen bounds and two atomic adds.  Readers see each bucket
+ * exactly, but a snapshot taken while requests are being recorded may be off by the few
+ * recordings in flight, which is fine for monitoring.
+ */
+class LatencyHistogram {
+    // upper bounds of each bucket, in nanoseconds; a final bucket catches everything larger
+    private static final long[] BOUNDS_NANOS = {
+            100000L, 250000L, 500000L,
+            1000000L, 2500000L, 5000000L,
+            10000000L, 25000000L, 50000000L,
+            100000000L, 250000000L, 500000000L,
+            1000000000L, 2500000000L, 5000000000L, 10000000000L,
+    };
+
+    // the same bounds in seconds, as written in the "le" label
+    static final String[] BOUND_LABELS = {
+            "0.0001", "0.00025", "0.0005",
+            "0.001", "0.0025", "0.005",
+            "0.01", "0.025", "0.05",
+            "0.1", "0.25", "0.5",
+            "1", "2.5", "5", "10",
+    };
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BOUNDS_NANOS.length + 1);
+    private final AtomicLong mSumNanos = new AtomicLong();
+
+    void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        mBuckets.incrementAndGet(bucket);
+        mSumNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return how many recordings fell in each bucket, not cumulative; the last entry counts
+     * recordings above every bound
+     */
+    long[] getBucketCounts() {
+        long[] counts = new long[mBuckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mBuckets.get(i);
+        }
+        return counts;
+    }
+
+    long getSumNanos() {
+        return mSumNanos.get();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import java.io.File;
+
+/**
+ * Where the server's logs go: the directory the request log is written to, and diagnostic
+ * messages, which end up in logcat on a device and on stderr on a plain JVM.
+ */
+public interface LogSink {
+    // message priorities, the same values as android.util.Log's
+    int VERBOSE = 2;
+    int DEBUG = 3;
+    int INFO = 4;
+    int WARN = 5;
+    int ERROR = 6;
+
+    /**
+     * @return the directory holding the request log and its rotated segments
+     */
+    File getLogDirectory();
+
+    /**
+     * @return false if messages of this priority would be thrown away, so callers can skip
+     * building them
+     */
+    boolean isLoggable(String tag, int priority);
+
+    /**
+     * @param tr logged with its stack trace, or null
+     */
+    void log(int priority, String tag, String message, Throwable tr);
+}
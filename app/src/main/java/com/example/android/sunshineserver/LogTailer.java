@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Follows a growing log file, reading only what has been appended since the last read.  Reads
+ * run on a single background thread, and any number of requestRead() calls made while a read is
+ * pending collapse into that one read, so a burst of FileObserver events costs one read.
+ *
+ * Only whole entries are delivered, either text lines or fixed-width records depending on the
+ * Decoder; a partly written entry is picked up by the next read.  If the file shrinks, or a new
+ * file appears where rotated segments go, the file is taken to have been rotated: the rest of the
+ * rotated segment is read first and then the new file from its start.  A truncation that is not a
+ * rotation, such as "Clear Log", should be followed by requestReset().  The first read of a large file
+ * starts at most MAX_INITIAL_READ bytes from its end.
+ */
+class LogTailer {
+    static final int MAX_INITIAL_READ = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Turns complete entries into text.
+     */
+    interface Decoder {
+        /**
+         * @return the size of every entry in bytes, or 0 if entries are lines ending in '\n'
+         */
+        int getEntrySize();
+
+        String decode(byte[] buffer, int length);
+    }
+
+    static final Decoder TEXT = new Decoder() {
+        @Override
+        public int getEntrySize() {
+            return 0;
+        }
+
+        @Override
+        public String decode(byte[] buffer, int length) {
+            return new String(buffer, 0, length, UTF_8);
+        }
+    };
+
+    interface Listener {
+        /**
+         * Called on the tailer thread with lines appended since the last call.
+         *
+         * @param reset true after requestReset() or on the first read, so anything shown
+         *              before should be replaced by text
+         */
+        void onLines(String text, boolean reset);
+    }
+
+    private final File mFile;
+    private final File mRotatedFile;
+    private final Decoder mDecoder;
+    private final Listener mListener;
+    private final AtomicBoolean mReadPending = new AtomicBoolean();
+    private final AtomicBoolean mResetPending = new AtomicBoolean();
+    private final ExecutorService mExecutor;
+    private final Runnable mReadTask = new Runnable() {
+        @Override
+        public void run() {
+            // cleared before reading, so a write that lands during the read schedules another
+            mReadPending.set(false);
+            read();
+        }
+    };
+
+    // only touched on the tailer thread
+    private long mOffset = -1;
+    private long mRotatedLength = -1;
+    private long mRotatedModified = -1;
+    private byte[] mBuffer = new byte[8 * 1024];
+
+    LogTailer(File file, Listener listener) {
+        this(file, null, TEXT, listener);
+    }
+
+    /**
+     * @param rotatedFile where file is moved to when it is rotated, or null
+     */
+    LogTailer(File file, File rotatedFile, Decoder decoder, Listener listener) {
+        mFile = file;
+        mRotatedFile = rotatedFile;
+        mDecoder = decoder;
+        mListener = listener;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LogTailer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Schedules a read of whatever has been appended, unless one is already scheduled.
+     */
+    void requestRead() {
+        if (mReadPending.compareAndSet(false, true)) {
+            try {
+                mExecutor.execute(mReadTask);
+            } catch (RejectedExecutionException e) {
+                // stopped
+            }
+        }
+    }
+
+    /**
+     * Schedules a read from the start of the file, for when the caller knows it was truncated
+     * rather than rotated.
+     */
+    void requestReset() {
+        mResetPending.set(true);
+        requestRead();
+    }
+
+    void stop() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Reads and delivers any new complete entries.  Must only be called from one thread at a time.
+     */
+    void read() {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            long length = file.length();
+            boolean reset = mResetPending.getAndSet(false) || mOffset < 0;
+            String rotated = "";
+            boolean rotation = rotatedFileReplaced();
+            if (reset) {
+                mOffset = startOffset(file, Math.max(0, length - MAX_INITIAL_READ), length);
+            } else if (rotation || length < mOffset) {
+                rotated = readRotatedRest();
+                mOffset = 0;
+            }
+            int available = (int) Math.min(Integer.MAX_VALUE, length - mOffset);
+            int end = 0;
+            if (available > 0) {
+                ensureBuffer(available);
+                file.seek(mOffset);
+                file.readFully(mBuffer, 0, available);
+                end = completeLength(available);
+            }
+            if (end > 0 || reset || rotated.length() > 0) {
+                mOffset += end;
+                mListener.onLines(rotated + mDecoder.decode(mBuffer, end), reset);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * @return true if a different file has appeared at mRotatedFile since the last call
+     */
+    private boolean rotatedFileReplaced() {
+        if (mRotatedFile == null) {
+            return false;
+        }
+        boolean exists = mRotatedFile.exists();
+        long length = exists ? mRotatedFile.length() : -1;
+        long modified = exists ? mRotatedFile.lastModified() : -1;
+        boolean replaced = exists && (length != mRotatedLength || modified != mRotatedModified);
+        mRotatedLength = length;
+        mRotatedModified = modified;
+        return replaced;
+    }
+
+    /**
+     * @return the entries written to the rotated segment after the last read, or "" if they
+     * can't be found
+     */
+    private String readRotatedRest() throws IOException {
+        if (mRotatedFile == null || !mRotatedFile.exists() || mRotatedFile.length() <= mOffset) {
+            return "";
+        }
+        RandomAccessFile file = new RandomAccessFile(mRotatedFile, "r");
+        try {
+            int available = (int) Math.min(Integer.MAX_VALUE, file.length() - mOffset);
+            ensureBuffer(available);
+            file.seek(mOffset);
+            file.readFully(mBuffer, 0, available);
+            return mDecoder.decode(mBuffer, completeLength(available));
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * @return the first entry boundary at or after offset
+     */
+    private long startOffset(RandomAccessFile file, long offset, long length) throws IOException {
+        int entrySize = mDecoder.getEntrySize();
+        if (entrySize > 0) {
+            return (offset + entrySize - 1) / entrySize * entrySize;
+        }
+        if (offset > 0) {
+            file.seek(offset - 1);
+            while (offset < length && file.read() != '\n') {
+                offset++;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * @return how many of the first length bytes in mBuffer make up complete entries
+     */
+    private int completeLength(int length) {
+        int entrySize = mDecoder.getEntrySize();
+        if (entrySize > 0) {
+            return length - length % entrySize;
+        }
+        int end = length;
+        while (end > 0 && mBuffer[end - 1] != '\n') {
+            end--;
+        }
+        return end;
+    }
+
+    private void ensureBuffer(int size) {
+        if (mBuffer.length < size) {
+            mBuffer = new byte[Math.max(size, mBuffer.length * 2)];
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
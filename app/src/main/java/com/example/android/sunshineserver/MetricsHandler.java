@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Serves the server's ServerMetrics in the Prometheus text format, for scraping while a test
+ * runs against the server.
+ */
+class MetricsHandler implements HttpRequestHandler {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String CONTENT_TYPE_PROMETHEUS = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final ServerMetrics mMetrics;
+
+    MetricsHandler(ServerMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    @Override
+    public void handle(HttpRequest request, HttpResponse response, HttpContext httpContext)
+            throws HttpException, IOException {
+        ServerMetrics.tag(httpContext, ServerMetrics.ROUTE_METRICS, ServerMetrics.MODE_NONE);
+        StringBuilder body = new StringBuilder(8 * 1024);
+        mMetrics.writePrometheus(body);
+        response.setHeader("Content-Type", CONTENT_TYPE_PROMETHEUS);
+        response.setHeader("Cache-Control", "no-cache");
+        response.setEntity(new ByteArrayEntity(body.toString().getBytes(UTF_8)));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import java.util.Random;
+
+/**
+ * The simulated network a response travels over: a delay before the response is sent, drawn
+ * from one of the DELAY_* distributions, and a cap on how fast it is sent.  Like ServerConfig,
+ * which holds one of these, an instance never changes; NetworkShaper applies it to responses.
+ *
+ * This works alongside every server mode, so a slow network can be combined with random, static
+ * or error responses.
+ */
+public final class NetworkConditions {
+    public static final int DELAY_FIXED = 0;        // always the delay
+    public static final int DELAY_UNIFORM = 1;      // the delay, plus or minus up to the jitter
+    public static final int DELAY_LOG_NORMAL = 2;   // a long-tailed spread around the delay
+
+    public static final int DEFAULT_DELAY_DISTRIBUTION = DELAY_LOG_NORMAL;
+    public static final int DEFAULT_DELAY_MILLIS = 300;
+    public static final int DEFAULT_DELAY_JITTER_MILLIS = 200;
+    public static final int DEFAULT_SPIKE_PERCENT = 5;
+    public static final int DEFAULT_BANDWIDTH_BYTES_PER_SECOND = 32 * 1024;
+
+    // the spread of log-normal delays, and how much longer a tail spike is than a normal delay
+    static final double LOG_NORMAL_SIGMA = 0.6;
+    static final int SPIKE_FACTOR = 10;
+    static final long MAX_DELAY_MILLIS = 60 * WeatherCommandHandler.SECOND_IN_MILLIS;
+
+    public static final NetworkConditions NONE = new NetworkConditions(DELAY_FIXED, 0, 0, 0, 0);
+
+    private final int mDelayDistribution;
+    private final int mDelayMillis;
+    private final int mDelayJitterMillis;
+    private final int mSpikePercent;
+    private final int mBandwidthBytesPerSecond;
+
+    /**
+     * @param delayDistribution       one of the DELAY_* values
+     * @param delayMillis             the fixed delay, the middle of the uniform range, or the
+     *                                median of the log-normal delay
+     * @param delayJitterMillis       how far uniform delays stray from delayMillis
+     * @param spikePercent            the chance, in percent, that a delay is SPIKE_FACTOR times
+     *                                longer than drawn
+     * @param bandwidthBytesPerSecond how fast responses are sent, or 0 for as fast as possible
+     */
+    public NetworkConditions(int delayDistribution, int delayMillis, int delayJitterMillis, int spikePercent,
+                             int bandwidthBytesPerSecond) {
+        mDelayDistribution = delayDistribution;
+        mDelayMillis = Math.max(0, delayMillis);
+        mDelayJitterMillis = Math.max(0, delayJitterMillis);
+        mSpikePercent = Math.max(0, Math.min(spikePercent, 100));
+        mBandwidthBytesPerSecond = Math.max(0, bandwidthBytesPerSecond);
+    }
+
+    /**
+     * @return the conditions set in ServerControl, or NONE if network shaping is switched off
+     */
+    public static NetworkConditions fromSource(ConfigSource source) {
+        if (!source.getBoolean(WeatherCommandHandler.PREF_NETWORK_SHAPING, false)) {
+            return NONE;
+        }
+        return new NetworkConditions(
+                source.getInt(WeatherCommandHandler.PREF_DELAY_DISTRIBUTION, DEFAULT_DELAY_DISTRIBUTION),
+                source.getInt(WeatherCommandHandler.PREF_DELAY_MILLIS, DEFAULT_DELAY_MILLIS),
+                source.getInt(WeatherCommandHandler.PREF_DELAY_JITTER_MILLIS, DEFAULT_DELAY_JITTER_MILLIS),
+                source.getInt(WeatherCommandHandler.PREF_DELAY_SPIKE_PERCENT, DEFAULT_SPIKE_PERCENT),
+                source.getInt(WeatherCommandHandler.PREF_BANDWIDTH_BYTES_PER_SECOND,
+                        DEFAULT_BANDWIDTH_BYTES_PER_SECOND));
+    }
+
+    /**
+     * @return true if responses are sent as they are, with no delay or bandwidth cap
+     */
+    public boolean isUnshaped() {
+        return mDelayMillis == 0 && mSpikePercent == 0 && mBandwidthBytesPerSecond == 0;
+    }
+
+    /**
+     * @return how fast responses are sent, or 0 for as fast as possible
+     */
+    public int getBandwidthBytesPerSecond() {
+        return mBandwidthBytesPerSecond;
+    }
+
+    /**
+     * @return a delay drawn from the distribution, at most MAX_DELAY_MILLIS
+     */
+    public long nextDelayMillis(Random random) {
+        double delay;
+        switch (mDelayDistribution) {
+            case DELAY_UNIFORM:
+                delay = mDelayMillis + (random.nextDouble() * 2 - 1) * mDelayJitterMillis;
+                break;
+            case DELAY_LOG_NORMAL:
+                delay = mDelayMillis * Math.exp(LOG_NORMAL_SIGMA * random.nextGaussian());
+                break;
+            default:
+                delay = mDelayMillis;
+        }
+        if (mSpikePercent > 0 && random.nextInt(100) < mSpikePercent) {
+            // a spike still needs something to multiply when the delay itself is zero
+            delay = Math.max(delay, 1) * SPIKE_FACTOR;
+        }
+        return Math.max(0, Math.min(Math.round(delay), MAX_DELAY_MILLIS));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.protocol.HttpContext;
+
+import java.util.Random;
+
+/**
+ * Applies the configured NetworkConditions to every response except /metrics scrapes and
+ * requests shed by AdmissionControl, so clients can be tested against slow and unreliable
+ * networks.
+ *
+ * The NIO engine puts a Shaping in each connection's HttpContext; the response interceptor only
+ * fills it in, and the engine parks the connection on a timer for the delay and between
+ * bandwidth ticks, so no thread waits.  The blocking engine could only wait by sleeping on the
+ * connection's worker, so HttpServer serves with the NIO engine while shaping is on, and
+ * responses on connections without a Shaping are sent as they are.  The engine is only chosen
+ * when the server starts: shaping turned on while the blocking engine runs is logged and ignored
+ * until the server is restarted, as ServerControl does when its checkbox is toggled.
+ */
+class NetworkShaper {
+    // HttpContext attribute holding a connection's Shaping, on engines that schedule it themselves
+    static final String ATTR_SHAPING = "sunshine.network-shaping";
+
+    // bandwidth is metered out in slices of this length
+    static final long TICK_MILLIS = 100;
+
+    /**
+     * How the current response on a connection is to be sent.  One per connection, reused for
+     * each request it carries.
+     */
+    static class Shaping {
+        long mDelayMillis;
+        int mBytesPerTick;
+
+        void clear() {
+            mDelayMillis = 0;
+            mBytesPerTick = 0;
+        }
+    }
+
+    // one generator per server thread, so drawing delays never contends on a shared lock
+    private static final ThreadLocal<Random> sRandoms = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private final ServerConfigMonitor mConfig;
+
+    NetworkShaper(ServerConfigMonitor config) {
+        mConfig = config;
+    }
+
+    /**
+     * @return how many bytes may be sent each tick, or 0 for no limit
+     */
+    static int bytesPerTick(int bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return 0;
+        }
+        return (int) Math.max(1, bytesPerSecond * TICK_MILLIS / WeatherCommandHandler.SECOND_IN_MILLIS);
+    }
+
+    HttpResponseInterceptor getResponseInterceptor() {
+        return new HttpResponseInterceptor() {
+            @Override
+            public void process(HttpResponse response, HttpContext context) {
+                NetworkConditions conditions = mConfig.get().getNetworkConditions();
+                Shaping shaping = (Shaping) context.getAttribute(ATTR_SHAPING);
+                // shed responses are meant to be cheap, so they are never held back either
+                if (shaping == null || conditions.isUnshaped()
+                        || ServerMetrics.getRoute(context) == ServerMetrics.ROUTE_METRICS
+                        || AdmissionControl.isShed(response)) {
+                    return;
+                }
+                shaping.mDelayMillis = conditions.nextDelayMillis(sRandoms.get());
+                shaping.mBytesPerTick = bytesPerTick(conditions.getBandwidthBytesPerSecond());
+            }
+        };
+    }
+}
@@ -0,0 +1,936 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.MethodNotSupportedException;
+import org.apache.http.ProtocolException;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.UnsupportedHttpVersionException;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpRequestHandlerResolver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking alternative to the ServerSocket accept loop in HttpServer.  One acceptor thread
+ * hands new connections round-robin to a small number of event loops, each of which multiplexes
+ * its connections on a single Selector.  Requests are parsed here and dispatched through the same
+ * HttpProcessor and handler registry that the blocking HttpService uses, so WeatherCommandHandler
+ * plugs in unchanged.
+ *
+ * Handlers run on a pool of handler workers rather than the event loop, since some of them
+ * block: WeatherCommandHandler waits on ForecastCache for a forecast another connection is
+ * loading, and GroupCommandHandler on its generators.  The loop stops watching a connection while
+ * its request is handled and picks it up again once the response is ready.  Response bodies are
+ * buffered by the handler worker before they are written, which suits the small responses this
+ * server generates, so for them the response_write metric times rendering into memory, not the
+ * socket write.  Bodies that can't be buffered, streamed entities that are neither repeatable nor
+ * of known length, are written on a stream worker thread into a BodyPipe, which the event loop
+ * drains as the socket accepts them.
+ *
+ * Simulated network conditions never block a loop: a delayed or throttled connection stops
+ * asking for writes and a timer hands it back to its loop when it may send again.
+ */
+class NioHttpEngine {
+    static private final String LOG_TAG = NioHttpEngine.class.getSimpleName();
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private static final int MAX_REQUEST_HEAD = 8 * 1024;
+    private static final int MAX_REQUEST_BODY = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 4 * 1024;
+
+    // how much of a streamed body may be waiting to be sent, and the most sent in one chunk
+    private static final int STREAM_PIPE_SIZE = 64 * 1024;
+    private static final int STREAM_CHUNK_SIZE = 8 * 1024;
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    // how often each loop looks for connections that have been idle for too long
+    private static final long IDLE_CHECK_INTERVAL_MILLIS = 1000;
+
+    private final HttpServer mServer;
+    private final HttpProcessor mHttpProc;
+    private final HttpRequestHandlerResolver mHandlerResolver;
+    private final DefaultHttpResponseFactory mResponseFactory = new DefaultHttpResponseFactory();
+
+    private ServerSocketChannel mServerChannel;
+    private Thread mAcceptThread;
+    private EventLoop[] mLoops;
+    private ThreadPoolExecutor mHandlerWorkers;
+    private ThreadPoolExecutor mStreamWorkers;
+    // wakes connections held back by NetworkShaper
+    private ScheduledThreadPoolExecutor mTimer;
+
+    NioHttpEngine(HttpServer server, HttpProcessor httpProc, HttpRequestHandlerResolver handlerResolver) {
+        mServer = server;
+        mHttpProc = httpProc;
+        mHandlerResolver = handlerResolver;
+    }
+
+    void start(int port, int loopCount) throws IOException {
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(port), HttpServer.sAcceptBacklog);
+
+        mHandlerWorkers = createWorkers("NioHttpEngine-handler-");
+        mStreamWorkers = createWorkers("NioHttpEngine-stream-");
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "NioHttpEngine-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        mLoops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < mLoops.length; i++) {
+            mLoops[i] = new EventLoop(i);
+            mLoops[i].start();
+        }
+
+        mAcceptThread = new Thread("NioHttpEngine-accept") {
+            @Override
+            public void run() {
+                int next = 0;
+                while (HttpServer.sRunning) {
+                    try {
+                        SocketChannel channel = mServerChannel.accept();
+                        channel.configureBlocking(false);
+                        channel.socket().setTcpNoDelay(true);
+                        mLoops[next].register(new Connection(channel));
+                        next = (next + 1) % mLoops.length;
+                    } catch (ClosedChannelException e) {
+                        break;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                HttpServer.sRunning = false;
+            }
+        };
+        mAcceptThread.start();
+    }
+
+    void stop() {
+        try {
+            mServerChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (EventLoop loop : mLoops) {
+            loop.shutdown();
+        }
+        try {
+            mAcceptThread.join(1000);
+            for (EventLoop loop : mLoops) {
+                loop.join(1000);
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        // closing the connections aborted their pipes, so any stream still running fails fast
+        mHandlerWorkers.shutdown();
+        mStreamWorkers.shutdown();
+        mTimer.shutdownNow();
+    }
+
+    private static ThreadPoolExecutor createWorkers(final String namePrefix) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory factory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, namePrefix + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        int threads = Math.max(1, HttpServer.sWorkerThreads);
+        return new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), factory);
+    }
+
+    /**
+     * Per-connection state: the bytes read so far, the response being written and the
+     * HttpContext shared by every request carried on the connection.
+     */
+    private static class Connection {
+        final SocketChannel mChannel;
+        final HttpContext mHttpContext = new BasicHttpContext();
+        final AtomicInteger mRequestCount = new AtomicInteger();
+        SelectionKey mKey;
+        ByteBuffer mInput = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        ByteBuffer mOutput;
+        // the rest of a streamed body, sent once mOutput has been written
+        BodyPipe mBody;
+        ByteBuffer mBodyBuffer;
+        boolean mCloseAfterWrite;
+        long mLastActivity;
+        final long mAcceptedNanos = System.nanoTime();
+        // filled in by NetworkShaper for each response
+        final NetworkShaper.Shaping mShaping = new NetworkShaper.Shaping();
+        // while paused, the connection waits on the timer rather than for the socket
+        boolean mPaused;
+        // how much of the response may still be sent this tick, when its bandwidth is capped
+        int mAllowance;
+        // while a handler worker serves the current request; see EventLoop.finishServing()
+        volatile boolean mServing;
+        boolean mClosed;
+        // left by the handler worker: a body to stream after mOutput, or that serving failed
+        HttpEntity mStream;
+        boolean mStreamChunked;
+        boolean mFailed;
+
+        Connection(SocketChannel channel) {
+            mChannel = channel;
+            mHttpContext.setAttribute(HttpServer.ATTR_REQUEST_COUNT, mRequestCount);
+            mHttpContext.setAttribute(NetworkShaper.ATTR_SHAPING, mShaping);
+        }
+    }
+
+    private class EventLoop extends Thread {
+        private final Selector mSelector;
+        private final ConcurrentLinkedQueue<Connection> mPending = new ConcurrentLinkedQueue<Connection>();
+        // connections whose streamed body has more to send after running dry
+        private final ConcurrentLinkedQueue<Connection> mWritable = new ConcurrentLinkedQueue<Connection>();
+        // paused connections whose time is up
+        private final ConcurrentLinkedQueue<Connection> mUnpaused = new ConcurrentLinkedQueue<Connection>();
+        // connections whose response a handler worker has finished preparing
+        private final ConcurrentLinkedQueue<Connection> mServed = new ConcurrentLinkedQueue<Connection>();
+        private volatile boolean mShutdown = false;
+        private long mLastIdleCheck;
+
+        EventLoop(int index) throws IOException {
+            super("NioHttpEngine-loop-" + index);
+            setDaemon(true);
+            mSelector = Selector.open();
+        }
+
+        void register(Connection connection) {
+            mPending.add(connection);
+            mSelector.wakeup();
+        }
+
+        void wakeForWrite(Connection connection) {
+            mWritable.add(connection);
+            mSelector.wakeup();
+        }
+
+        void shutdown() {
+            mShutdown = true;
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!mShutdown) {
+                    mSelector.select(IDLE_CHECK_INTERVAL_MILLIS);
+                    long now = System.currentTimeMillis();
+                    registerPending(now);
+                    resumeWriters(now);
+                    resumePaused(now);
+                    resumeServed(now);
+                    Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        connection.mLastActivity = now;
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                onReadable(key, connection);
+                            }
+                            if (key.isValid() && key.isWritable() && onWritable(key, connection)) {
+                                // a pipelined request may already be sitting in the input buffer
+                                processInput(key, connection);
+                            }
+                        } catch (IOException e) {
+                            close(key, connection);
+                        } catch (Throwable t) {
+                            // anything else would end the loop and strand every connection on it
+                            mServer.getLogSink().log(LogSink.ERROR, LOG_TAG, "Dropping a connection after an unexpected failure", t);
+                            close(key, connection);
+                        }
+                    }
+                    if (now - mLastIdleCheck >= IDLE_CHECK_INTERVAL_MILLIS) {
+                        closeIdleConnections(now);
+                        mLastIdleCheck = now;
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (ClosedSelectorException e) {
+                // shut down underneath us
+            } finally {
+                for (SelectionKey key : mSelector.keys()) {
+                    close(key, (Connection) key.attachment());
+                }
+                try {
+                    mSelector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void registerPending(long now) {
+            Connection connection;
+            while (null != (connection = mPending.poll())) {
+                connection.mLastActivity = now;
+                try {
+                    connection.mKey = connection.mChannel.register(mSelector, SelectionKey.OP_READ, connection);
+                    mServer.onConnectionOpened(System.nanoTime() - connection.mAcceptedNanos);
+                } catch (ClosedChannelException e) {
+                    // client went away before we got to it
+                }
+            }
+        }
+
+        private void resumeWriters(long now) {
+            Connection connection;
+            while (null != (connection = mWritable.poll())) {
+                // a body that has since been finished or abandoned needs nothing more, and a
+                // paused connection resumes writing when the timer says so
+                if (connection.mBody != null && !connection.mPaused && connection.mKey.isValid()) {
+                    connection.mLastActivity = now;
+                    connection.mKey.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        private void resumePaused(long now) {
+            Connection connection;
+            while (null != (connection = mUnpaused.poll())) {
+                connection.mPaused = false;
+                if (connection.mKey.isValid()) {
+                    connection.mLastActivity = now;
+                    connection.mAllowance = connection.mShaping.mBytesPerTick;
+                    connection.mKey.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        private void resumeServed(long now) {
+            Connection connection;
+            while (null != (connection = mServed.poll())) {
+                SelectionKey key = connection.mKey;
+                // closed since, by the idle check or shutdown
+                if (!key.isValid()) {
+                    continue;
+                }
+                connection.mLastActivity = now;
+                try {
+                    if (connection.mFailed) {
+                        close(key, connection);
+                    } else if (respond(key, connection)) {
+                        processInput(key, connection);
+                    }
+                } catch (IOException e) {
+                    close(key, connection);
+                } catch (Throwable t) {
+                    mServer.getLogSink().log(LogSink.ERROR, LOG_TAG, "Dropping a connection after an unexpected failure", t);
+                    close(key, connection);
+                }
+            }
+        }
+
+        /**
+         * Stops writing to the connection for the given time.
+         */
+        private void pause(SelectionKey key, final Connection connection, long millis) {
+            connection.mPaused = true;
+            key.interestOps(0);
+            try {
+                mTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        mUnpaused.add(connection);
+                        mSelector.wakeup();
+                    }
+                }, millis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down; the loop closes the connection on its way out
+            }
+        }
+
+        private void closeIdleConnections(long now) {
+            for (SelectionKey key : mSelector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                // never cut off a response that is still being prepared or written
+                if (!connection.mServing && connection.mOutput == null &&
+                        now - connection.mLastActivity >= HttpServer.sKeepAliveTimeoutMillis) {
+                    close(key, connection);
+                }
+            }
+        }
+
+        private void onReadable(SelectionKey key, Connection connection) throws IOException {
+            if (!connection.mInput.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(connection.mInput.capacity() * 2);
+                connection.mInput.flip();
+                larger.put(connection.mInput);
+                connection.mInput = larger;
+            }
+            int read = connection.mChannel.read(connection.mInput);
+            if (read < 0) {
+                close(key, connection);
+                return;
+            }
+            processInput(key, connection);
+        }
+
+        /**
+         * Sends as much of the response as the socket and any bandwidth cap allow.
+         *
+         * @return true once the response has been sent and the connection is ready for another
+         * request
+         */
+        private boolean onWritable(SelectionKey key, Connection connection) throws IOException {
+            int bytesPerTick = connection.mShaping.mBytesPerTick;
+            while (true) {
+                if (bytesPerTick == 0) {
+                    connection.mChannel.write(connection.mOutput);
+                } else if (connection.mAllowance == 0) {
+                    // this tick's share of the bandwidth is used up
+                    pause(key, connection, NetworkShaper.TICK_MILLIS);
+                    return false;
+                } else {
+                    ByteBuffer output = connection.mOutput;
+                    int limit = output.limit();
+                    output.limit(Math.min(limit, output.position() + connection.mAllowance));
+                    connection.mAllowance -= connection.mChannel.write(output);
+                    output.limit(limit);
+                }
+                if (connection.mOutput.hasRemaining()) {
+                    if (bytesPerTick > 0 && connection.mAllowance == 0) {
+                        continue;
+                    }
+                    return false;
+                }
+                if (connection.mBody == null) {
+                    break;
+                }
+                ByteBuffer buffer = connection.mBodyBuffer;
+                buffer.clear();
+                int read = connection.mBody.read(buffer);
+                buffer.flip();
+                connection.mOutput = buffer;
+                if (read < 0) {
+                    connection.mBody = null;
+                    connection.mBodyBuffer = null;
+                    break;
+                } else if (read == 0) {
+                    // the pipe calls wakeForWrite() when the stream worker catches up
+                    key.interestOps(0);
+                    return false;
+                }
+            }
+            connection.mOutput = null;
+            connection.mShaping.clear();
+            mServer.onResponseSent(connection.mHttpContext);
+            if (connection.mCloseAfterWrite) {
+                close(key, connection);
+                return false;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            return true;
+        }
+
+        /**
+         * Serves the complete requests in the input buffer in turn, until one can't be sent
+         * straight away or there are none left.  A loop rather than a call back from
+         * onWritable(), so a long pipeline can't run the stack out.
+         */
+        private void processInput(SelectionKey key, Connection connection) throws IOException {
+            while (!connection.mServing && connection.mOutput == null && serveRequest(key, connection)) {
+            }
+        }
+
+        /**
+         * Parses one complete request from the input buffer, if there is one, and hands it to a
+         * handler worker, or answers it straight away if it is malformed.
+         *
+         * @return true if its response has been sent and the connection is ready for another
+         */
+        private boolean serveRequest(SelectionKey key, Connection connection) throws IOException {
+            ByteBuffer input = connection.mInput;
+            int headEnd = findHeadEnd(input);
+            if (headEnd < 0) {
+                if (input.position() > MAX_REQUEST_HEAD) {
+                    sendError(key, connection, HttpStatus.SC_REQUEST_URI_TOO_LONG);
+                }
+                return false;
+            }
+            String head = new String(input.array(), 0, headEnd, US_ASCII);
+            HttpRequest request;
+            try {
+                request = parseRequest(head);
+            } catch (ProtocolException e) {
+                sendError(key, connection, HttpStatus.SC_BAD_REQUEST);
+                return false;
+            }
+            int bodyLength = 0;
+            Header contentLength = request.getFirstHeader(HTTP.CONTENT_LEN);
+            if (request.getFirstHeader(HTTP.TRANSFER_ENCODING) != null) {
+                sendError(key, connection, HttpStatus.SC_LENGTH_REQUIRED);
+                return false;
+            } else if (contentLength != null) {
+                try {
+                    bodyLength = Integer.parseInt(contentLength.getValue().trim());
+                } catch (NumberFormatException e) {
+                    bodyLength = -1;
+                }
+                if (bodyLength < 0 || bodyLength > MAX_REQUEST_BODY) {
+                    sendError(key, connection, HttpStatus.SC_REQUEST_TOO_LONG);
+                    return false;
+                }
+            }
+            int requestEnd = headEnd + 4 + bodyLength;
+            if (input.position() < requestEnd) {
+                return false;
+            }
+            if (bodyLength > 0) {
+                BasicHttpEntityEnclosingRequest withBody = new BasicHttpEntityEnclosingRequest(request.getRequestLine());
+                withBody.setHeaders(request.getAllHeaders());
+                byte[] body = new byte[bodyLength];
+                System.arraycopy(input.array(), headEnd + 4, body, 0, bodyLength);
+                withBody.setEntity(new ByteArrayEntity(body));
+                request = withBody;
+            }
+
+            // keep anything after this request for the next round
+            input.flip();
+            input.position(requestEnd);
+            input.compact();
+
+            connection.mShaping.clear();
+            connection.mServing = true;
+            // nothing more is read until the response is ready
+            key.interestOps(0);
+            try {
+                mHandlerWorkers.execute(new HandleRequest(this, connection, request));
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                connection.mServing = false;
+                close(key, connection);
+            }
+            return false;
+        }
+
+        /**
+         * Called on a handler worker once it is done with the connection's request.  Whichever of
+         * this and close() comes last returns the request's admission permit, as the HttpContext
+         * belongs to the worker until then.
+         */
+        void finishServing(Connection connection) {
+            boolean closed;
+            synchronized (connection) {
+                connection.mServing = false;
+                closed = connection.mClosed;
+            }
+            if (closed) {
+                mServer.onResponseSent(connection.mHttpContext);
+            } else {
+                mServed.add(connection);
+                mSelector.wakeup();
+            }
+        }
+
+        /**
+         * Starts sending the response a handler worker has prepared.
+         *
+         * @return true if it has been sent and the connection is ready for another request
+         */
+        private boolean respond(SelectionKey key, Connection connection) throws IOException {
+            if (connection.mStream != null) {
+                startStream(connection, connection.mStream, connection.mStreamChunked);
+                connection.mStream = null;
+            }
+            connection.mAllowance = connection.mShaping.mBytesPerTick;
+            if (connection.mShaping.mDelayMillis > 0) {
+                pause(key, connection, connection.mShaping.mDelayMillis);
+                return false;
+            }
+            key.interestOps(SelectionKey.OP_WRITE);
+            return onWritable(key, connection);
+        }
+
+        /**
+         * Starts writing entity into a pipe on a stream worker; onWritable() sends it from there.
+         */
+        private void startStream(final Connection connection, final HttpEntity entity, final boolean chunked) {
+            final BodyPipe pipe = new BodyPipe(STREAM_PIPE_SIZE, new BodyPipe.Listener() {
+                @Override
+                public void onReadable() {
+                    wakeForWrite(connection);
+                }
+            });
+            connection.mBody = pipe;
+            connection.mBodyBuffer = ByteBuffer.allocate(STREAM_CHUNK_SIZE + 32);
+            try {
+                mStreamWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        OutputStream out = chunked ? new ChunkedOutput(pipe.mOut) : pipe.mOut;
+                        try {
+                            entity.writeTo(out);
+                            out.close();
+                        } catch (IOException e) {
+                            pipe.finish(e);
+                        } catch (RuntimeException e) {
+                            mServer.getLogSink().log(LogSink.ERROR, LOG_TAG, "Streaming a response body failed", e);
+                            pipe.finish(new IOException(e));
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                pipe.finish(new IOException("Server is shutting down"));
+            }
+        }
+
+        private void sendError(SelectionKey key, Connection connection, int status) throws IOException {
+            HttpResponse response = mResponseFactory.newHttpResponse(HttpVersion.HTTP_1_0, status, connection.mHttpContext);
+            response.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+            response.setHeader(HTTP.CONTENT_LEN, "0");
+            connection.mOutput = ByteBuffer.wrap(serialize(response, false));
+            connection.mCloseAfterWrite = true;
+            key.interestOps(SelectionKey.OP_WRITE);
+            onWritable(key, connection);
+        }
+
+        private void close(SelectionKey key, Connection connection) {
+            boolean serving;
+            synchronized (connection) {
+                connection.mClosed = true;
+                serving = connection.mServing;
+            }
+            key.cancel();
+            if (connection.mBody != null) {
+                connection.mBody.abort();
+                connection.mBody = null;
+            }
+            try {
+                connection.mChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (!serving) {
+                mServer.onResponseSent(connection.mHttpContext);
+            }
+            mServer.onConnectionClosed(connection.mRequestCount.get());
+        }
+    }
+
+    /**
+     * Serves one request on a handler worker and prepares its response for the event loop: the
+     * head, and the body unless it is streamed.
+     */
+    private class HandleRequest implements Runnable {
+        private final EventLoop mLoop;
+        private final Connection mConnection;
+        private final HttpRequest mRequest;
+
+        HandleRequest(EventLoop loop, Connection connection, HttpRequest request) {
+            mLoop = loop;
+            mConnection = connection;
+            mRequest = request;
+        }
+
+        @Override
+        public void run() {
+            Connection connection = mConnection;
+            try {
+                HttpResponse response = service(mRequest, connection.mHttpContext);
+                boolean headRequest = "HEAD".equalsIgnoreCase(mRequest.getRequestLine().getMethod());
+                HttpEntity entity = response.getEntity();
+                boolean stream = !headRequest && entity != null && isUnbuffered(entity);
+                connection.mOutput = ByteBuffer.wrap(serialize(response, !headRequest && !stream));
+                connection.mCloseAfterWrite = !isKeepAlive(mRequest, response);
+                if (stream) {
+                    connection.mStream = entity;
+                    connection.mStreamChunked = response.getFirstHeader(HTTP.TRANSFER_ENCODING) != null;
+                }
+            } catch (IOException e) {
+                connection.mFailed = true;
+            } catch (Throwable t) {
+                mServer.getLogSink().log(LogSink.ERROR, LOG_TAG, "Serving a request failed", t);
+                connection.mFailed = true;
+            }
+            mLoop.finishServing(connection);
+        }
+    }
+
+    /**
+     * The same request/response sequence as HttpService.doService(): request interceptors,
+     * handler lookup, handler, then response interceptors.
+     */
+    private HttpResponse service(HttpRequest request, HttpContext context) throws IOException {
+        ProtocolVersion version = request.getRequestLine().getProtocolVersion();
+        if (!version.lessEquals(HttpVersion.HTTP_1_1)) {
+            version = HttpVersion.HTTP_1_1;
+        }
+        HttpResponse response = mResponseFactory.newHttpResponse(version, HttpStatus.SC_OK, context);
+        context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+        context.setAttribute(ExecutionContext.HTTP_RESPONSE, response);
+        try {
+            mHttpProc.process(request, context);
+            HttpRequestHandler handler = mHandlerResolver.lookup(request.getRequestLine().getUri());
+            if (handler != null) {
+                try {
+                    handler.handle(request, response, context);
+                } catch (RuntimeException e) {
+                    // a broken handler costs its own request, not its connection
+                    mServer.getLogSink().log(LogSink.ERROR, LOG_TAG, "Request handler failed", e);
+                    throw new HttpException("Request handler failed", e);
+                }
+            } else {
+                response.setStatusCode(HttpStatus.SC_NOT_IMPLEMENTED);
+            }
+        } catch (HttpException e) {
+            response = mResponseFactory.newHttpResponse(HttpVersion.HTTP_1_0, statusForException(e), context);
+            context.setAttribute(ExecutionContext.HTTP_RESPONSE, response);
+        }
+        bufferEntity(response);
+        try {
+            mHttpProc.process(response, context);
+        } catch (HttpException e) {
+            mServer.getLogSink().log(LogSink.ERROR, LOG_TAG, "Response interceptor failed", e);
+            response = mResponseFactory.newHttpResponse(HttpVersion.HTTP_1_0, HttpStatus.SC_INTERNAL_SERVER_ERROR, context);
+            response.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+            response.setHeader(HTTP.CONTENT_LEN, "0");
+        }
+        unchunk(response);
+        return response;
+    }
+
+    private static int statusForException(HttpException e) {
+        if (e instanceof MethodNotSupportedException) {
+            return HttpStatus.SC_NOT_IMPLEMENTED;
+        } else if (e instanceof UnsupportedHttpVersionException) {
+            return HttpStatus.SC_HTTP_VERSION_NOT_SUPPORTED;
+        } else if (e instanceof ProtocolException) {
+            return HttpStatus.SC_BAD_REQUEST;
+        }
+        return HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * @return true for entities that are sent from a BodyPipe rather than buffered
+     */
+    private static boolean isUnbuffered(HttpEntity entity) {
+        return entity.getContentLength() < 0 && !entity.isRepeatable();
+    }
+
+    /**
+     * Replaces a streamed entity with its buffered bytes so ResponseContent can send an exact
+     * Content-Length.  Unbuffered entities are left for startStream().
+     */
+    private static void bufferEntity(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null || entity.getContentLength() >= 0 || isUnbuffered(entity)) {
+            return;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream(8 * 1024);
+        entity.writeTo(body);
+        ByteArrayEntity buffered = new ByteArrayEntity(body.toByteArray());
+        buffered.setContentType(entity.getContentType());
+        buffered.setContentEncoding(entity.getContentEncoding());
+        response.setEntity(buffered);
+    }
+
+    /**
+     * Interceptors may still wrap a buffered body in an entity of unknown length, as
+     * ResponseCompression does, which ResponseContent then marks chunked.  Buffers that entity
+     * too and sends it with a Content-Length instead; only unbuffered entities stay chunked.
+     */
+    private static void unchunk(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null || isUnbuffered(entity) || response.getFirstHeader(HTTP.TRANSFER_ENCODING) == null) {
+            return;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream(8 * 1024);
+        entity.writeTo(body);
+        ByteArrayEntity buffered = new ByteArrayEntity(body.toByteArray());
+        buffered.setContentType(entity.getContentType());
+        buffered.setContentEncoding(entity.getContentEncoding());
+        response.setEntity(buffered);
+        response.removeHeaders(HTTP.TRANSFER_ENCODING);
+        response.setHeader(HTTP.CONTENT_LEN, Integer.toString(body.size()));
+    }
+
+    private static byte[] serialize(HttpResponse response, boolean includeBody) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8 * 1024);
+        StringBuilder head = new StringBuilder(256);
+        head.append(response.getStatusLine().toString()).append("\r\n");
+        for (Header header : response.getAllHeaders()) {
+            head.append(header.getName()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(US_ASCII));
+        HttpEntity entity = response.getEntity();
+        if (includeBody && entity != null) {
+            // unchunk() has left only unbuffered entities chunked, and those aren't written here
+            entity.writeTo(out);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Frames a body with the chunked transfer coding, a chunk per STREAM_CHUNK_SIZE bytes.
+     */
+    private static class ChunkedOutput extends OutputStream {
+        private final OutputStream mOut;
+        private final byte[] mBuffer = new byte[STREAM_CHUNK_SIZE];
+        private int mCount;
+
+        ChunkedOutput(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mCount == mBuffer.length) {
+                writeChunk();
+            }
+            mBuffer[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mCount == mBuffer.length) {
+                    writeChunk();
+                }
+                int n = Math.min(len, mBuffer.length - mCount);
+                System.arraycopy(b, off, mBuffer, mCount, n);
+                mCount += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeChunk();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writeChunk();
+            mOut.write(LAST_CHUNK);
+            mOut.close();
+        }
+
+        private void writeChunk() throws IOException {
+            if (mCount == 0) {
+                return;
+            }
+            mOut.write(Integer.toHexString(mCount).getBytes(US_ASCII));
+            mOut.write(CRLF);
+            mOut.write(mBuffer, 0, mCount);
+            mOut.write(CRLF);
+            mCount = 0;
+        }
+    }
+
+    private static boolean isKeepAlive(HttpRequest request, HttpResponse response) {
+        Header connection = response.getFirstHeader(HTTP.CONN_DIRECTIVE);
+        if (connection != null && HTTP.CONN_CLOSE.equalsIgnoreCase(connection.getValue())) {
+            return false;
+        }
+        if (request.getRequestLine().getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0)) {
+            return connection != null && HTTP.CONN_KEEP_ALIVE.equalsIgnoreCase(connection.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * @return the offset of the blank line that ends the request head, or -1 if it hasn't
+     * arrived yet.
+     */
+    private static int findHeadEnd(ByteBuffer input) {
+        byte[] bytes = input.array();
+        int limit = input.position() - 3;
+        for (int i = 0; i < limit; i++) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static HttpRequest parseRequest(String head) throws ProtocolException {
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/")) {
+            throw new ProtocolException("Invalid request line: " + lines[0]);
+        }
+        ProtocolVersion version;
+        try {
+            String[] numbers = requestLine[2].substring(5).split("\\.");
+            version = new ProtocolVersion("HTTP", Integer.parseInt(numbers[0]), Integer.parseInt(numbers[1]));
+        } catch (RuntimeException e) {
+            throw new ProtocolException("Invalid protocol version: " + requestLine[2]);
+        }
+        BasicHttpRequest request = new BasicHttpRequest(requestLine[0].toUpperCase(Locale.US), requestLine[1], version);
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                throw new ProtocolException("Invalid header: " + lines[i]);
+            }
+            request.addHeader(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+        }
+        return request;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import org.apache.http.protocol.HttpContext;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The query parameters the server understands, found in a single pass over the request URI.
+ * Parsing only records where each value starts and ends; values are decoded when asked for, and
+ * numbers are read straight from the URI without creating strings.
+ *
+ * One instance is kept per connection in its HttpContext and reused for every request on it,
+ * which is safe because a connection handles one request at a time.  Values match what
+ * android.net.Uri.getQueryParameter() returns: the first occurrence of a key wins, and values
+ * are decoded as UTF-8 with '+' read as a space.
+ */
+final class QueryParams {
+    static final String ATTR_QUERY_PARAMS = "sunshine.query-params";
+
+    static final int Q = 0;
+    static final int LAT = 1;
+    static final int LON = 2;
+    static final int CNT = 3;
+    static final int UNITS = 4;
+    static final int APPID = 5;
+    static final int SEED = 6;
+    static final int BULK = 7;
+    static final int ID = 8;
+    private static final String[] NAMES = { "q", "lat", "lon", "cnt", "units", "appid", "seed", "bulk", "id" };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private String mUri;
+    // where each value starts and ends in mUri; -1 if the key is absent
+    private final int[] mStart = new int[NAMES.length];
+    private final int[] mEnd = new int[NAMES.length];
+
+    // scratch space for decoding escaped values and joining lat and lon
+    private byte[] mDecoded = new byte[64];
+    private final StringBuilder mLocation = new StringBuilder(32);
+    private long mNumber;
+
+    /**
+     * @return the connection's parameter holder, created the first time it is asked for
+     */
+    static QueryParams forContext(HttpContext context) {
+        QueryParams params = (QueryParams) context.getAttribute(ATTR_QUERY_PARAMS);
+        if (params == null) {
+            params = new QueryParams();
+            context.setAttribute(ATTR_QUERY_PARAMS, params);
+        }
+        return params;
+    }
+
+    /**
+     * Replaces the current parameters with those in uri's query string.
+     *
+     * @param uri a request URI, such as the request line's
+     */
+    QueryParams parse(String uri) {
+        mUri = uri;
+        Arrays.fill(mStart, -1);
+        Arrays.fill(mEnd, -1);
+        int query = uri.indexOf('?');
+        if (query < 0) {
+            return this;
+        }
+        int end = uri.indexOf('#', query);
+        if (end < 0) {
+            end = uri.length();
+        }
+        int pos = query + 1;
+        while (pos <= end) {
+            int pairEnd = uri.indexOf('&', pos);
+            if (pairEnd < 0 || pairEnd > end) {
+                pairEnd = end;
+            }
+            int equals = uri.indexOf('=', pos);
+            if (equals < 0 || equals > pairEnd) {
+                equals = pairEnd;
+            }
+            int param = lookup(uri, pos, equals);
+            if (param >= 0 && mStart[param] < 0) {
+                mStart[param] = Math.min(equals + 1, pairEnd);
+                mEnd[param] = pairEnd;
+            }
+            pos = pairEnd + 1;
+        }
+        return this;
+    }
+
+    private static int lookup(String uri, int start, int end) {
+        for (int i = 0; i < NAMES.length; i++) {
+            String name = NAMES[i];
+            if (name.length() == end - start && uri.regionMatches(start, name, 0, name.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    boolean has(int param) {
+        return mStart[param] >= 0;
+    }
+
+    /**
+     * @return true if the parameter's undecoded value is exactly value
+     */
+    boolean is(int param, String value) {
+        return has(param) && mEnd[param] - mStart[param] == value.length()
+                && mUri.regionMatches(mStart[param], value, 0, value.length());
+    }
+
+    /**
+     * @return the decoded value, or null if the parameter is absent
+     */
+    String get(int param) {
+        if (!has(param)) {
+            return null;
+        }
+        return isPlain(param) ? mUri.substring(mStart[param], mEnd[param]) : decode(mStart[param], mEnd[param]);
+    }
+
+    private String decode(int start, int end) {
+        if (mDecoded.length < end - start) {
+            mDecoded = new byte[Math.max(mDecoded.length * 2, end - start)];
+        }
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            char c = mUri.charAt(i);
+            int hi, lo;
+            if (c == '+') {
+                mDecoded[count++] = ' ';
+            } else if (c == '%' && i + 2 < end && (hi = Character.digit(mUri.charAt(i + 1), 16)) >= 0
+                    && (lo = Character.digit(mUri.charAt(i + 2), 16)) >= 0) {
+                mDecoded[count++] = (byte) (hi << 4 | lo);
+                i += 2;
+            } else {
+                // the request line was read one char per byte, so this restores the raw byte;
+                // malformed escapes are kept as they are
+                mDecoded[count++] = (byte) c;
+            }
+        }
+        return new String(mDecoded, 0, count, UTF_8);
+    }
+
+    /**
+     * @return what the request asks a forecast for: "q" if present, otherwise "lat,lon" if both
+     * are present, otherwise ""
+     */
+    String getLocation() {
+        if (has(Q)) {
+            return get(Q);
+        }
+        if (!has(LAT) || !has(LON)) {
+            return "";
+        }
+        if (isPlain(LAT) && isPlain(LON)) {
+            mLocation.setLength(0);
+            mLocation.append(mUri, mStart[LAT], mEnd[LAT]).append(',').append(mUri, mStart[LON], mEnd[LON]);
+            return mLocation.toString();
+        }
+        return get(LAT) + "," + get(LON);
+    }
+
+    private boolean isPlain(int param) {
+        return !contains(param, '%') && !contains(param, '+');
+    }
+
+    private boolean contains(int param, char c) {
+        int i = mUri.indexOf(c, mStart[param]);
+        return i >= 0 && i < mEnd[param];
+    }
+
+    /**
+     * Reads a decimal integer, ignoring surrounding spaces, like Integer.parseInt(value.trim()).
+     *
+     * @return the value, or defaultValue if the parameter is absent or not an int
+     */
+    int getInt(int param, int defaultValue) {
+        if (!has(param)) {
+            return defaultValue;
+        }
+        if (contains(param, '%')) {
+            try {
+                return Integer.parseInt(get(param).trim());
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+        int start = mStart[param];
+        int end = mEnd[param];
+        // '+' is an encoded space here
+        while (start < end && mUri.charAt(start) == '+') start++;
+        while (end > start && mUri.charAt(end - 1) == '+') end--;
+        return parseNumber(start, end, Integer.MIN_VALUE, Integer.MAX_VALUE) ? (int) mNumber : defaultValue;
+    }
+
+    /**
+     * Reads a decimal long, like Long.parseLong(value).
+     *
+     * @return the value, or null if the parameter is absent or not a long
+     */
+    Long getLong(int param) {
+        if (!has(param)) {
+            return null;
+        }
+        if (!isPlain(param)) {
+            try {
+                return Long.parseLong(get(param));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return parseNumber(mStart[param], mEnd[param], Long.MIN_VALUE, Long.MAX_VALUE) ? Long.valueOf(mNumber) : null;
+    }
+
+    /**
+     * Parses the decimal number in mUri[start, end) into mNumber.
+     *
+     * @return false if it is not a number within [min, max]
+     */
+    private boolean parseNumber(int start, int end, long min, long max) {
+        if (start >= end) {
+            return false;
+        }
+        boolean negative = false;
+        int pos = start;
+        char first = mUri.charAt(pos);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            if (++pos == end) {
+                return false;
+            }
+        }
+        // accumulate negatively, so that min is reachable without overflow
+        long limit = negative ? min : -max;
+        long multiplyLimit = limit / 10;
+        long value = 0;
+        for (; pos < end; pos++) {
+            int digit = mUri.charAt(pos) - '0';
+            if (digit < 0 || digit > 9 || value < multiplyLimit) {
+                return false;
+            }
+            value *= 10;
+            if (value < limit + digit) {
+                return false;
+            }
+            value -= digit;
+        }
+        mNumber = negative ? value : -value;
+        return true;
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the request log from a background thread so that request handling never waits on
+ * file I/O.  Entries are queued by log() and written in batches through a single open stream,
+ * which is flushed once FLUSH_BATCH_SIZE entries are pending or FLUSH_INTERVAL_MILLIS has
+ * passed.  When the queue is full, entries are dropped and counted rather than blocking.
+ *
+ * Entries go to an active segment, which is rotated once it holds sMaxSegmentBytes or has been
+ * open for sMaxSegmentAgeMillis: WeatherLog becomes WeatherLog.1, WeatherLog.1 becomes
+ * WeatherLog.2 and so on, and only sMaxSegments rotated segments are kept, which bounds the disk
+ * the log can use.  With FORMAT_BINARY, entries are fixed-width RequestLogRecords written to
+ * WeatherLog.bin instead of text lines.
+ *
+ * The active segment is opened in append mode, so truncating it from ServerControl's "Clear Log"
+ * button is safe while the writer holds it open.  Segments live in the LogSink's log directory.
+ */
+public class RequestLog {
+    public static final int QUEUE_CAPACITY = 1024;
+    public static final int FLUSH_BATCH_SIZE = 64;
+    public static final long FLUSH_INTERVAL_MILLIS = 250;
+
+    // how entries are written, chosen when the writer starts
+    public static final int FORMAT_TEXT = 0;      // one human-readable line per request
+    public static final int FORMAT_BINARY = 1;    // one RequestLogRecord per request
+
+    public static int sFormat = FORMAT_TEXT;
+    public static long sMaxSegmentBytes = 1024 * 1024;
+    public static long sMaxSegmentAgeMillis = WeatherCommandHandler.DAY_IN_MILLIS;
+    public static int sMaxSegments = 4;
+
+    private static final String BINARY_SUFFIX = ".bin";
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static class Entry {
+        final long mTime;
+        final int mMode;
+        final int mStatus;
+        final int mLatencyMicros;
+        final String mQuery;
+
+        Entry(long time, int mode, int status, int latencyMicros, String query) {
+            mTime = time;
+            mMode = mode;
+            mStatus = status;
+            mLatencyMicros = latencyMicros;
+            mQuery = query;
+        }
+    }
+
+    private final LogSink mLogSink;
+    private final ServerClock mClock;
+    private final ArrayBlockingQueue<Entry> mQueue = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile boolean mRunning = false;
+    private Thread mWriterThread;
+
+    // only touched on the writer thread
+    private int mFormat;
+    private File mActiveFile;
+    private OutputStream mOut;
+    private long mSegmentBytes;
+    private long mSegmentOpened;
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RequestLogRecord.RECORD_SIZE);
+
+    public RequestLog(LogSink logSink, ServerClock clock) {
+        mLogSink = logSink;
+        mClock = clock;
+    }
+
+    /**
+     * @return the segment currently being written for the given format
+     */
+    public static File getActiveFile(LogSink logSink, int format) {
+        File text = WeatherCommandHandler.getLogFile(logSink);
+        return format == FORMAT_BINARY ? new File(text.getPath() + BINARY_SUFFIX) : text;
+    }
+
+    /**
+     * @param index 1 for the most recently rotated segment, up to sMaxSegments
+     */
+    public static File getSegmentFile(File activeFile, int index) {
+        return new File(activeFile.getPath() + "." + index);
+    }
+
+    /**
+     * Truncates the active segments and deletes every rotated one.
+     */
+    public static void clear(LogSink logSink) {
+        int[] formats = { FORMAT_TEXT, FORMAT_BINARY };
+        for (int format : formats) {
+            File active = getActiveFile(logSink, format);
+            if (active.exists()) {
+                try {
+                    // opens the file with append == false, clearing it
+                    new FileOutputStream(active, false).close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (int i = 1; getSegmentFile(active, i).delete(); i++) {
+                // keep going until there are no more
+            }
+        }
+    }
+
+    /**
+     * Queues a request for logging.  Never blocks.
+     *
+     * @param mode          the WeatherCommandHandler.SERVER_MODE_* that served it
+     * @param latencyMicros how long it took to handle
+     * @return false if the queue was full and the entry was dropped
+     */
+    public boolean log(long time, int mode, int status, int latencyMicros, String query) {
+        if (!mQueue.offer(new Entry(time, mode, status, latencyMicros, query))) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of entries dropped because the writer could not keep up
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mFormat = sFormat;
+        mWriterThread = new Thread("RequestLog-writer") {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * Stops the writer after it has written everything already queued.
+     */
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mWriterThread.interrupt();
+        try {
+            mWriterThread.join(1000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        mWriterThread = null;
+    }
+
+    private void writeLoop() {
+        ArrayList<Entry> batch = new ArrayList<Entry>(FLUSH_BATCH_SIZE);
+        int pending = 0;
+        long lastFlush = mClock.currentTimeMillis();
+        long reportedDropped = 0;
+        try {
+            mActiveFile = getActiveFile(mLogSink, mFormat);
+            openSegment(lastFlush);
+            while (mRunning || !mQueue.isEmpty()) {
+                Entry first = null;
+                try {
+                    first = mQueue.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // stop() wakes us up; drain whatever is left on the way out
+                }
+                if (first != null) {
+                    batch.add(first);
+                    mQueue.drainTo(batch, FLUSH_BATCH_SIZE - 1);
+                    for (Entry entry : batch) {
+                        write(entry);
+                    }
+                    pending += batch.size();
+                    batch.clear();
+                }
+                long dropped = mDropped.get();
+                if (dropped != reportedDropped) {
+                    writeDropped(mClock.currentTimeMillis(), dropped - reportedDropped);
+                    reportedDropped = dropped;
+                    pending++;
+                }
+                long now = mClock.currentTimeMillis();
+                if (pending > 0 && (pending >= FLUSH_BATCH_SIZE || now - lastFlush >= FLUSH_INTERVAL_MILLIS)) {
+                    mOut.flush();
+                    pending = 0;
+                    lastFlush = now;
+                }
+                if (pending == 0 && shouldRotate(now)) {
+                    rotate(now);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (mOut != null) {
+                try {
+                    mOut.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                mOut = null;
+            }
+        }
+    }
+
+    private void openSegment(long now) throws IOException {
+        mOut = new BufferedOutputStream(new FileOutputStream(mActiveFile, true), 16 * 1024);
+        mSegmentBytes = mActiveFile.length();
+        mSegmentOpened = now;
+    }
+
+    private boolean shouldRotate(long now) {
+        if (mSegmentBytes == 0) {
+            return false;
+        }
+        if (mSegmentBytes >= sMaxSegmentBytes) {
+            // "Clear Log" may have truncated the file behind our back
+            mSegmentBytes = mActiveFile.length();
+            return mSegmentBytes >= sMaxSegmentBytes;
+        }
+        return now - mSegmentOpened >= sMaxSegmentAgeMillis;
+    }
+
+    /**
+     * Closes the active segment, shifts every rotated segment up by one, dropping the oldest,
+     * and starts a new active segment.
+     */
+    private void rotate(long now) throws IOException {
+        mOut.close();
+        mOut = null;
+        getSegmentFile(mActiveFile, sMaxSegments).delete();
+        for (int i = sMaxSegments - 1; i >= 1; i--) {
+            File segment = getSegmentFile(mActiveFile, i);
+            if (segment.exists()) {
+                segment.renameTo(getSegmentFile(mActiveFile, i + 1));
+            }
+        }
+        if (sMaxSegments > 0) {
+            mActiveFile.renameTo(getSegmentFile(mActiveFile, 1));
+        } else {
+            mActiveFile.delete();
+        }
+        openSegment(now);
+    }
+
+    private void write(Entry entry) throws IOException {
+        if (mFormat == FORMAT_BINARY) {
+            writeRecord(entry.mTime, entry.mMode, entry.mStatus, entry.mLatencyMicros, entry.mQuery);
+        } else {
+            writeLine(formatLine(mClock, entry.mTime, entry.mQuery, entry.mStatus, entry.mLatencyMicros));
+        }
+    }
+
+    private void writeDropped(long time, long count) throws IOException {
+        if (mFormat == FORMAT_BINARY) {
+            writeRecord(time, RequestLogRecord.MODE_DROPPED, 0, (int) Math.min(count, Integer.MAX_VALUE), "");
+        } else {
+            writeLine(formatDropped(count));
+        }
+    }
+
+    private void writeRecord(long time, int mode, int status, int latencyMicros, String query) throws IOException {
+        mRecord.clear();
+        RequestLogRecord.encode(mRecord, time, mode, status, latencyMicros, query);
+        mOut.write(mRecord.array(), 0, RequestLogRecord.RECORD_SIZE);
+        mSegmentBytes += RequestLogRecord.RECORD_SIZE;
+    }
+
+    private void writeLine(String line) throws IOException {
+        byte[] bytes = line.getBytes(UTF_8);
+        mOut.write(bytes);
+        mSegmentBytes += bytes.length;
+    }
+
+    /**
+     * @return the text form of an entry, as written with FORMAT_TEXT
+     */
+    public static String formatLine(ServerClock clock, long time, String query, int status, int latencyMicros) {
+        return "Weather Request at: " + clock.formatDateTime(time) + " - " + query +
+                " (" + status + ", " + (latencyMicros / 1000) + "." + (latencyMicros / 100 % 10) + " ms)" +
+                LINE_SEPARATOR;
+    }
+
+    public static String formatDropped(long count) {
+        return "Request log overloaded: " + count + " entries dropped" + LINE_SEPARATOR;
+    }
+
+    /**
+     * Decodes whole binary records into the same lines FORMAT_TEXT would have written.
+     */
+    static String formatRecords(ServerClock clock, byte[] buffer, int length) {
+        StringBuilder sb = new StringBuilder(length * 2);
+        for (int offset = 0; offset + RequestLogRecord.RECORD_SIZE <= length; offset += RequestLogRecord.RECORD_SIZE) {
+            RequestLogRecord record = RequestLogRecord.decode(buffer, offset);
+            if (record == null) {
+                sb.append("Unreadable log record").append(LINE_SEPARATOR);
+            } else if (record.mMode == RequestLogRecord.MODE_DROPPED) {
+                sb.append(formatDropped(record.mLatencyMicros));
+            } else {
+                sb.append(formatLine(clock, record.mTime, record.getQuery(), record.mStatus, record.mLatencyMicros));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The fixed-width binary form of a request log entry.  Every record is RECORD_SIZE bytes, so a
+ * reader can start at any multiple of RECORD_SIZE and skip a partly written record at the end.
+ * Multi-byte fields are big-endian:
+ *
+ *   0  short  MAGIC
+ *   2  byte   VERSION
+ *   3  byte   server mode, or MODE_DROPPED for a record counting dropped entries
+ *   4  short  HTTP status
+ *   6  short  length of the full query in UTF-8 bytes, capped at 65535
+ *   8  long   request time, in milliseconds since the epoch
+ *  16  int    handling latency in microseconds, or the dropped count for MODE_DROPPED
+ *  20  int    String.hashCode() of the full query
+ *  24  bytes  the first QUERY_PREFIX_BYTES bytes of the query in UTF-8, zero padded
+ *
+ * The hash lets tools group requests for the same location even when the query is longer than
+ * the stored prefix.
+ */
+final class RequestLogRecord {
+    static final int RECORD_SIZE = 64;
+    static final short MAGIC = 0x5357;  // "SW"
+    static final byte VERSION = 1;
+    static final int MODE_DROPPED = 0xff;
+
+    private static final int QUERY_PREFIX_OFFSET = 24;
+    static final int QUERY_PREFIX_BYTES = RECORD_SIZE - QUERY_PREFIX_OFFSET;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    long mTime;
+    int mMode;
+    int mStatus;
+    int mLatencyMicros;
+    int mQueryHash;
+    int mQueryLength;
+    String mQueryPrefix;
+
+    /**
+     * Writes one record at the buffer's position, advancing it by RECORD_SIZE.
+     */
+    static void encode(ByteBuffer out, long time, int mode, int status, int latencyMicros, String query) {
+        byte[] queryBytes = query.getBytes(UTF_8);
+        int prefix = Math.min(queryBytes.length, QUERY_PREFIX_BYTES);
+        // don't split a multi-byte character
+        while (prefix < queryBytes.length && prefix > 0 && (queryBytes[prefix] & 0xc0) == 0x80) {
+            prefix--;
+        }
+        out.putShort(MAGIC);
+        out.put(VERSION);
+        out.put((byte) mode);
+        out.putShort((short) status);
+        out.putShort((short) Math.min(queryBytes.length, 0xffff));
+        out.putLong(time);
+        out.putInt(latencyMicros);
+        out.putInt(query.hashCode());
+        out.put(queryBytes, 0, prefix);
+        for (int i = prefix; i < QUERY_PREFIX_BYTES; i++) {
+            out.put((byte) 0);
+        }
+    }
+
+    /**
+     * @return the record starting at offset, or null if the bytes there are not a record
+     */
+    static RequestLogRecord decode(byte[] buffer, int offset) {
+        ByteBuffer in = ByteBuffer.wrap(buffer, offset, RECORD_SIZE);
+        if (in.getShort() != MAGIC || in.get() != VERSION) {
+            return null;
+        }
+        RequestLogRecord record = new RequestLogRecord();
+        record.mMode = in.get() & 0xff;
+        record.mStatus = in.getShort() & 0xffff;
+        record.mQueryLength = in.getShort() & 0xffff;
+        record.mTime = in.getLong();
+        record.mLatencyMicros = in.getInt();
+        record.mQueryHash = in.getInt();
+        int prefixStart = offset + QUERY_PREFIX_OFFSET;
+        int prefixEnd = prefixStart;
+        while (prefixEnd < prefixStart + QUERY_PREFIX_BYTES && buffer[prefixEnd] != 0) {
+            prefixEnd++;
+        }
+        record.mQueryPrefix = new String(buffer, prefixStart, prefixEnd - prefixStart, UTF_8);
+        return record;
+    }
+
+    /**
+     * @return true if only part of the query fit in the record
+     */
+    boolean isQueryTruncated() {
+        return mQueryLength > mQueryPrefix.getBytes(UTF_8).length;
+    }
+
+    /**
+     * @return the query as stored, with "..." appended if it was cut short
+     */
+    String getQuery() {
+        return isQueryTruncated() ? mQueryPrefix + "..." : mQueryPrefix;
+    }
+}
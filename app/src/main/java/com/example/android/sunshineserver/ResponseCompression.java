@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses response bodies as they are written, for clients that send Accept-Encoding.
+ * Responses that already carry a Content-Encoding, such as precompressed static forecasts,
+ * are left alone.  Must run before ResponseContent, which sets the framing for the compressed
+ * entity.
+ */
+class ResponseCompression implements HttpResponseInterceptor {
+    // bodies smaller than this don't shrink enough to be worth compressing
+    static final int MIN_COMPRESS_LENGTH = 256;
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) {
+        HttpEntity entity = response.getEntity();
+        int status = response.getStatusLine().getStatusCode();
+        if (entity == null || status == HttpStatus.SC_NO_CONTENT || status == HttpStatus.SC_NOT_MODIFIED ||
+                entity.getContentEncoding() != null || response.containsHeader(ContentEncoding.CONTENT_ENCODING)) {
+            return;
+        }
+        long length = entity.getContentLength();
+        if (length >= 0 && length < MIN_COMPRESS_LENGTH) {
+            return;
+        }
+        response.setHeader(ContentEncoding.VARY, ContentEncoding.ACCEPT_ENCODING);
+        String encoding = ContentEncoding.negotiate((HttpRequest) context.getAttribute(ExecutionContext.HTTP_REQUEST));
+        if (encoding != null) {
+            response.setEntity(new CompressingEntity(entity, encoding));
+            Header entityTag = response.getFirstHeader(ContentEncoding.ETAG);
+            if (entityTag != null) {
+                response.setHeader(ContentEncoding.ETAG, ContentEncoding.variantTag(entityTag.getValue(), encoding));
+            }
+        }
+    }
+
+    private static class CompressingEntity extends HttpEntityWrapper {
+        private final String mEncoding;
+
+        CompressingEntity(HttpEntity entity, String encoding) {
+            super(entity);
+            mEncoding = encoding;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return new BasicHeader(ContentEncoding.CONTENT_ENCODING, mEncoding);
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isChunked() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            Deflater deflater = ContentEncoding.newDeflater(mEncoding);
+            try {
+                DeflaterOutputStream compressor = ContentEncoding.compressing(out, mEncoding, deflater);
+                wrappedEntity.writeTo(compressor);
+                // finish, not close: the connection owns the underlying stream
+                compressor.finish();
+                compressor.flush();
+            } finally {
+                // frees zlib's native memory now rather than whenever the Deflater is finalized
+                deflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+/**
+ * The time responses are stamped with and how the request log shows it.
+ */
+public interface ServerClock {
+    /**
+     * @return the current wall-clock time, as System.currentTimeMillis() would
+     */
+    long currentTimeMillis();
+
+    /**
+     * @return millis as a date and time for people to read, in the local time zone
+     */
+    String formatDateTime(long millis);
+}
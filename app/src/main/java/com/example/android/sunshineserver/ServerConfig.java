@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+/**
+ * An immutable snapshot of the settings in a ConfigSource, which ServerControl writes to
+ * SharedPreferences on a device.  Request handlers read one of these through ServerConfigMonitor
+ * instead of going back to the source for every value; new settings belong here as fields.
+ */
+public final class ServerConfig {
+    public static final int DEFAULT_ERROR_CODE = 404;
+    public static final int DEFAULT_FORECAST_DAYS = 14;
+    public static final int DEFAULT_CACHE_TTL_SECONDS = 600;
+
+    private final int mServerMode;
+    private final int mErrorCode;
+    private final int mForecastDays;
+    private final int mCacheTtlSeconds;
+    private final NetworkConditions mNetworkConditions;
+
+    public ServerConfig(int serverMode, int errorCode, int forecastDays, int cacheTtlSeconds,
+                        NetworkConditions networkConditions) {
+        mServerMode = serverMode;
+        mErrorCode = errorCode;
+        mForecastDays = forecastDays;
+        mCacheTtlSeconds = cacheTtlSeconds;
+        mNetworkConditions = networkConditions;
+    }
+
+    public static ServerConfig fromSource(ConfigSource source) {
+        return new ServerConfig(
+                source.getInt(WeatherCommandHandler.PREF_SERVER_MODE, WeatherCommandHandler.SERVER_MODE_STATIC),
+                source.getInt(WeatherCommandHandler.PREF_SERVER_ERROR, DEFAULT_ERROR_CODE),
+                source.getInt(WeatherCommandHandler.PREF_FORECAST_DAYS, DEFAULT_FORECAST_DAYS),
+                source.getInt(WeatherCommandHandler.PREF_CACHE_TTL_SECONDS, DEFAULT_CACHE_TTL_SECONDS),
+                NetworkConditions.fromSource(source));
+    }
+
+    /**
+     * @return one of the WeatherCommandHandler.SERVER_MODE_* values
+     */
+    public int getServerMode() {
+        return mServerMode;
+    }
+
+    /**
+     * @return the status code returned in SERVER_MODE_ERROR
+     */
+    public int getErrorCode() {
+        return mErrorCode;
+    }
+
+    /**
+     * @return the number of days in a forecast when the request doesn't ask for a count
+     */
+    public int getForecastDays() {
+        return mForecastDays;
+    }
+
+    /**
+     * @return how long a random forecast is served again for the same location, or 0 to
+     * generate every response afresh
+     */
+    public long getCacheTtlMillis() {
+        return mCacheTtlSeconds * WeatherCommandHandler.SECOND_IN_MILLIS;
+    }
+
+    /**
+     * @return the delay and bandwidth responses are sent with; NetworkConditions.NONE unless
+     * network shaping is switched on
+     */
+    public NetworkConditions getNetworkConditions() {
+        return mNetworkConditions;
+    }
+}
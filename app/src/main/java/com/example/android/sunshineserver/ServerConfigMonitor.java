@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+/**
+ * Keeps the current ServerConfig in a volatile field and replaces it whenever a setting in the
+ * ConfigSource changes, so the request path costs a single volatile read.
+ */
+public class ServerConfigMonitor implements ConfigSource.Listener {
+    private final ConfigSource mSource;
+    private volatile ServerConfig mConfig;
+
+    public ServerConfigMonitor(ConfigSource source) {
+        mSource = source;
+        mConfig = ServerConfig.fromSource(source);
+    }
+
+    public ServerConfig get() {
+        return mConfig;
+    }
+
+    /**
+     * Re-reads the settings and starts following changes to them.
+     */
+    public void start() {
+        mSource.registerListener(this);
+        mConfig = ServerConfig.fromSource(mSource);
+    }
+
+    public void stop() {
+        mSource.unregisterListener(this);
+    }
+
+    @Override
+    public void onConfigChanged(ConfigSource source, String key) {
+        mConfig = ServerConfig.fromSource(source);
+    }
+}
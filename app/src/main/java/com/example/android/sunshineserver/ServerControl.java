@@ -31,20 +31,17 @@ import android.text.TextWatcher;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.RadioButton;
 import android.widget.ScrollView;
 import android.widget.TextView;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
 
 public class ServerControl extends AppCompatActivity implements View.OnClickListener, TextWatcher {
     static private final String LOG_TAG = ServerControl.class.getSimpleName();
     SharedPreferences mPreferences;
+    AndroidPlatform mPlatform;
     Button mStopServerButton;
     Button mClearLogButton;
     TextView mServerStarted;
@@ -52,6 +49,7 @@ public class ServerControl extends AppCompatActivity implements View.OnClickList
     TextView mError;
     File mLogFile;
     FileObserver mLogFileObserver;
+    LogTailer mLogTailer;
     ScrollView mLogScroller;
     static final private int[] RADIO_GROUP = new int[] { R.id.radioReturnError, R.id.radioReturnRandom, R.id.radioReturnStatic };
 
@@ -77,41 +75,31 @@ public class ServerControl extends AppCompatActivity implements View.OnClickList
         }
     }
 
-    class ReaderTask extends AsyncTask<File, Void, String>
-    {
-        @Override
-        protected String doInBackground(File... files) {
-            String fileContents = "";
-            File f = files[0];
-            try {
-                BufferedReader br = new BufferedReader(new FileReader(mLogFile));
-                StringBuilder sb = new StringBuilder((int)f.length());
-                // read in the contents of the file
-                String line;
-                String lineSeparator = System.getProperty("line.separator");
-                while (null != (line = br.readLine())) {
-                    sb.append(line);
-                    sb.append(lineSeparator);
-                }
-                fileContents = sb.toString();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            return fileContents;
-        }
+    // the log view keeps at most this much text, dropping the oldest half when it grows past it
+    static final private int MAX_LOG_VIEW_CHARS = 128 * 1024;
 
-        @Override
-        protected void onPostExecute(String s) {
-            super.onPostExecute(s);
+    /**
+     * Shows lines from the tailer, trimming the view so a long soak test can't grow it forever.
+     */
+    private void showLogLines(String lines, boolean reset) {
+        if ( !reset && lines.length() == 0 ) {
+            return;
+        }
+        if ( reset ) {
+            mLog.setText(lines);
+        } else {
             CharSequence text = mLog.getText();
-            if ( s.length() > text.length() ) {
-                mLog.append(s.substring(text.length()));
+            if ( text.length() + lines.length() > MAX_LOG_VIEW_CHARS ) {
+                String all = text.toString() + lines;
+                int keepFrom = all.length() - MAX_LOG_VIEW_CHARS / 2;
+                int lineStart = all.indexOf('\n', keepFrom);
+                mLog.setText(all.substring(lineStart < 0 ? keepFrom : lineStart + 1));
             } else {
-                mLog.setText(s);
+                mLog.append(lines);
             }
-            mLogScroller.fullScroll(View.FOCUS_DOWN);
         }
-    };
+        mLogScroller.fullScroll(View.FOCUS_DOWN);
+    }
 
     private void uncheckRadioButton(int id) {
         ((RadioButton)findViewById(id)).setChecked(false);
@@ -133,6 +121,20 @@ public class ServerControl extends AppCompatActivity implements View.OnClickList
         }
     }
 
+    public void onSlowNetworkClicked(View view) {
+        // the delay and bandwidth themselves come from the NetworkConditions preferences
+        boolean checked = ((CheckBox) view).isChecked();
+        mPreferences.edit().putBoolean(WeatherCommandHandler.PREF_NETWORK_SHAPING, checked).apply();
+        // shaped responses are only served by the NIO engine, which the server picks when it starts
+        try {
+            if ( mIWeatherService != null ) {
+                mIWeatherService.restartServer();
+            }
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
     public void onRadioButtonClicked(View view) {
         boolean checked = ((RadioButton) view).isChecked();
         int id = view.getId();
@@ -161,6 +163,7 @@ public class ServerControl extends AppCompatActivity implements View.OnClickList
         startService();
         setContentView(R.layout.activity_server_control);
         mPreferences = getSharedPreferences(WeatherCommandHandler.SHARED_PREFERENCES, MODE_PRIVATE);
+        mPlatform = new AndroidPlatform(this);
         mStopServerButton = (Button)findViewById(R.id.stopServerButton);
         mStopServerButton.setOnClickListener(this);
         mClearLogButton = (Button)findViewById(R.id.clearLogButton);
@@ -169,17 +172,48 @@ public class ServerControl extends AppCompatActivity implements View.OnClickList
         mLog = (TextView)findViewById(R.id.logView);
         mLogScroller = (ScrollView)findViewById(R.id.logViewScroller);
         mError = (TextView)findViewById(R.id.error);
-        mLogFile  =  WeatherCommandHandler.getLogFile(this);
-        mLogFileObserver = new FileObserver(mLogFile.getAbsolutePath(), FileObserver.MODIFY) {
+        mLogFile  =  RequestLog.getActiveFile(mPlatform, RequestLog.sFormat);
+        LogTailer.Decoder decoder = LogTailer.TEXT;
+        if ( RequestLog.sFormat == RequestLog.FORMAT_BINARY ) {
+            decoder = new LogTailer.Decoder() {
+                @Override
+                public int getEntrySize() {
+                    return RequestLogRecord.RECORD_SIZE;
+                }
+
+                @Override
+                public String decode(byte[] buffer, int length) {
+                    return RequestLog.formatRecords(mPlatform, buffer, length);
+                }
+            };
+        }
+        mLogTailer = new LogTailer(mLogFile, RequestLog.getSegmentFile(mLogFile, 1), decoder, new LogTailer.Listener() {
+            @Override
+            public void onLines(final String text, final boolean reset) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        showLogLines(text, reset);
+                    }
+                });
+            }
+        });
+        // watch the directory, since rotation replaces the log file with a new one
+        final String logFileName = mLogFile.getName();
+        mLogFileObserver = new FileObserver(mLogFile.getParent(),
+                FileObserver.MODIFY | FileObserver.CREATE | FileObserver.MOVED_FROM) {
             @Override
             public void onEvent(int event, String path) {
-                new ReaderTask().execute(mLogFile);
+                if ( logFileName.equals(path) ) {
+                    // bursts of events collapse into a single read of the new bytes
+                    mLogTailer.requestRead();
+                }
             }
         };
-        new ReaderTask().execute(mLogFile);
+        mLogTailer.requestRead();
         mLogFileObserver.startWatching();
         int serverModeSetting = mPreferences.getInt(WeatherCommandHandler.PREF_SERVER_MODE, WeatherCommandHandler.SERVER_MODE_STATIC);
-        int serverErrorSetting = mPreferences.getInt(WeatherCommandHandler.PREF_SERVER_MODE, 404);
+        int serverErrorSetting = mPreferences.getInt(WeatherCommandHandler.PREF_SERVER_ERROR, ServerConfig.DEFAULT_ERROR_CODE);
 
         mError.setText(Integer.toString(serverErrorSetting));
         mError.addTextChangedListener(this);
@@ -198,6 +232,8 @@ public class ServerControl extends AppCompatActivity implements View.OnClickList
         }
         ((RadioButton)findViewById(defaultId)).setChecked(true);
         checkRadioButton(defaultId);
+        ((CheckBox)findViewById(R.id.checkSlowNetwork)).setChecked(
+                mPreferences.getBoolean(WeatherCommandHandler.PREF_NETWORK_SHAPING, false));
     }
 
     private void startService() {
@@ -237,22 +273,15 @@ public class ServerControl extends AppCompatActivity implements View.OnClickList
                 e.printStackTrace();
             }
         } else if ( v == mClearLogButton ) {
-            File f = WeatherCommandHandler.getLogFile(this);
-            new AsyncTask<File,Void,Void>() {
+            new AsyncTask<LogSink,Void,Void>() {
                 @Override
-                protected Void doInBackground(File... params) {
-                    File f = params[0];
-                    try {
-                        // opens the file with append == false, clearing it
-                        FileWriter fw = new FileWriter(f, false);
-                        fw.flush();
-                        fw.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                protected Void doInBackground(LogSink... params) {
+                    // truncates the active log and deletes the rotated segments
+                    RequestLog.clear(params[0]);
+                    mLogTailer.requestReset();
                     return null;
                 }
-            }.execute(f);
+            }.execute(mPlatform);
         }
     }
 
@@ -283,5 +312,6 @@ public class ServerControl extends AppCompatActivity implements View.OnClickList
         unbindService(mConnection);
         mStopServerButton.setOnClickListener(null);
         mLogFileObserver.stopWatching();
+        mLogTailer.stop();
     }
 }
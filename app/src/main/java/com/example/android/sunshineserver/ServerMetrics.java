@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for everything HttpServer serves, exported by MetricsHandler
+ * in the Prometheus text format.  Everything is recorded with atomic adds on preallocated
+ * arrays, so recording never takes a lock and allocates only a small wrapper per response body.
+ *
+ * Requests are timed by two interceptors: the request interceptor notes when the request head
+ * has been read, and the response interceptor, which must run last, records the handling time
+ * and status and wraps the entity so that writing the body is timed and its bytes counted.
+ * Handlers say which route and server mode served a request through tag().
+ */
+class ServerMetrics {
+    // HttpContext attribute holding the Exchange for the request in progress on a connection
+    static final String ATTR_EXCHANGE = "sunshine.metrics-exchange";
+
+    // the route label of each request, set by the handler that serves it
+    static final int ROUTE_FORECAST = 0;
+    static final int ROUTE_METRICS = 1;
+    static final int ROUTE_OTHER = 2;
+    static final int ROUTE_GROUP = 3;
+    private static final String[] ROUTE_NAMES = { "forecast", "metrics", "other", "group" };
+
+    // the mode label: WeatherCommandHandler.SERVER_MODE_*, or MODE_NONE for other routes
+    static final int MODE_NONE = 3;
+    private static final String[] MODE_NAMES = { "random", "static", "error", "none" };
+
+    private static final int MIN_STATUS = 100;
+    private static final int MAX_STATUS = 599;
+    private static final int STATUS_COUNT = MAX_STATUS - MIN_STATUS + 1;
+
+    /**
+     * What is known about the request in progress on a connection.  One per connection, reused
+     * for each request it carries.
+     */
+    private static class Exchange {
+        long mStartNanos;
+        int mRoute;
+        int mMode;
+    }
+
+    // request counts indexed by [mode][status]
+    private final AtomicLongArray mRequests = new AtomicLongArray(MODE_NAMES.length * STATUS_COUNT);
+    private final LatencyHistogram[] mHandling = new LatencyHistogram[ROUTE_NAMES.length];
+    private final LatencyHistogram[] mBodyWrite = new LatencyHistogram[ROUTE_NAMES.length];
+    private final LatencyHistogram mAcceptQueueWait = new LatencyHistogram();
+    private final AtomicLong mConnectionsOpened = new AtomicLong();
+    private final AtomicLong mConnectionsClosed = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mAdmitted = new AtomicLong();
+    private final AtomicLong mShed = new AtomicLong();
+    private final AtomicLong mInFlight = new AtomicLong();
+
+    ServerMetrics() {
+        for (int i = 0; i < ROUTE_NAMES.length; i++) {
+            mHandling[i] = new LatencyHistogram();
+            mBodyWrite[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records which route and server mode are serving the current request.
+     */
+    static void tag(HttpContext context, int route, int mode) {
+        Exchange exchange = (Exchange) context.getAttribute(ATTR_EXCHANGE);
+        if (exchange != null) {
+            exchange.mRoute = route;
+            exchange.mMode = mode;
+        }
+    }
+
+    /**
+     * @return the route tag() recorded for the current request, or ROUTE_OTHER if there is none
+     */
+    static int getRoute(HttpContext context) {
+        Exchange exchange = (Exchange) context.getAttribute(ATTR_EXCHANGE);
+        return exchange != null ? exchange.mRoute : ROUTE_OTHER;
+    }
+
+    /**
+     * @param queuedNanos how long the connection waited between accept and being picked up
+     */
+    void onConnectionOpened(long queuedNanos) {
+        mConnectionsOpened.incrementAndGet();
+        mAcceptQueueWait.record(queuedNanos);
+    }
+
+    void onConnectionClosed() {
+        mConnectionsClosed.incrementAndGet();
+    }
+
+    /**
+     * Called by AdmissionControl when it lets a request through.
+     */
+    void onAdmitted() {
+        mAdmitted.incrementAndGet();
+        mInFlight.incrementAndGet();
+    }
+
+    /**
+     * Called by AdmissionControl once an admitted request's response has been sent.
+     */
+    void onAdmittedDone() {
+        mInFlight.decrementAndGet();
+    }
+
+    /**
+     * Called whenever a request is turned away with a 503 because the server is saturated.
+     */
+    void onShed() {
+        mShed.incrementAndGet();
+    }
+
+    HttpRequestInterceptor getRequestInterceptor() {
+        return new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context) {
+                Exchange exchange = (Exchange) context.getAttribute(ATTR_EXCHANGE);
+                if (exchange == null) {
+                    exchange = new Exchange();
+                    context.setAttribute(ATTR_EXCHANGE, exchange);
+                }
+                exchange.mStartNanos = System.nanoTime();
+                exchange.mRoute = ROUTE_OTHER;
+                exchange.mMode = MODE_NONE;
+            }
+        };
+    }
+
+    HttpResponseInterceptor getResponseInterceptor() {
+        return new HttpResponseInterceptor() {
+            @Override
+            public void process(HttpResponse response, HttpContext context) {
+                Exchange exchange = (Exchange) context.getAttribute(ATTR_EXCHANGE);
+                int route = ROUTE_OTHER;
+                int mode = MODE_NONE;
+                // a request that failed before the request interceptors ran has no start time
+                if (exchange != null && exchange.mStartNanos != 0) {
+                    route = exchange.mRoute;
+                    mode = exchange.mMode;
+                    mHandling[route].record(System.nanoTime() - exchange.mStartNanos);
+                    exchange.mStartNanos = 0;
+                }
+                int status = response.getStatusLine().getStatusCode();
+                if (status >= MIN_STATUS && status <= MAX_STATUS) {
+                    mRequests.incrementAndGet(mode * STATUS_COUNT + status - MIN_STATUS);
+                }
+                HttpEntity entity = response.getEntity();
+                if (entity != null) {
+                    response.setEntity(new MeteredEntity(entity, mBodyWrite[route]));
+                }
+            }
+        };
+    }
+
+    /**
+     * Times writing the wrapped entity and counts the bytes written, after any compression.  The
+     * NIO engine writes buffered bodies into memory first, so there this times rendering them.
+     */
+    private class MeteredEntity extends HttpEntityWrapper {
+        private final LatencyHistogram mHistogram;
+
+        MeteredEntity(HttpEntity entity, LatencyHistogram histogram) {
+            super(entity);
+            mHistogram = histogram;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            long start = System.nanoTime();
+            CountingOutputStream counting = new CountingOutputStream(out);
+            try {
+                wrappedEntity.writeTo(counting);
+            } finally {
+                mHistogram.record(System.nanoTime() - start);
+                mBytesWritten.addAndGet(counting.mCount);
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+    }
+
+    long getRequestCount(int mode, int status) {
+        return mRequests.get(mode * STATUS_COUNT + status - MIN_STATUS);
+    }
+
+    long getActiveConnections() {
+        return mConnectionsOpened.get() - mConnectionsClosed.get();
+    }
+
+    long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    long getAdmittedCount() {
+        return mAdmitted.get();
+    }
+
+    long getShedCount() {
+        return mShed.get();
+    }
+
+    /**
+     * Appends every metric in the Prometheus text exposition format, version 0.0.4.
+     */
+    void writePrometheus(StringBuilder out) {
+        out.append("# HELP sunshine_requests_total Requests served, by server mode and status code.\n");
+        out.append("# TYPE sunshine_requests_total counter\n");
+        for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+            for (int status = MIN_STATUS; status <= MAX_STATUS; status++) {
+                long count = getRequestCount(mode, status);
+                if (count != 0) {
+                    out.append("sunshine_requests_total{mode=\"").append(MODE_NAMES[mode])
+                            .append("\",code=\"").append(status).append("\"} ").append(count).append('\n');
+                }
+            }
+        }
+
+        writeHistograms(out, "sunshine_request_handling_seconds",
+                "Time from reading the request head to the response being ready, by route.", mHandling);
+        writeHistograms(out, "sunshine_response_write_seconds",
+                "Time spent writing response bodies, by route.", mBodyWrite);
+
+        out.append("# HELP sunshine_response_bytes_total Response body bytes written, after compression.\n");
+        out.append("# TYPE sunshine_response_bytes_total counter\n");
+        out.append("sunshine_response_bytes_total ").append(getBytesWritten()).append('\n');
+
+        out.append("# HELP sunshine_connections_total Connections accepted and picked up.\n");
+        out.append("# TYPE sunshine_connections_total counter\n");
+        out.append("sunshine_connections_total ").append(mConnectionsOpened.get()).append('\n');
+
+        out.append("# HELP sunshine_active_connections Connections currently open.\n");
+        out.append("# TYPE sunshine_active_connections gauge\n");
+        out.append("sunshine_active_connections ").append(getActiveConnections()).append('\n');
+
+        out.append("# HELP sunshine_admission_total Requests let through or shed by admission control.\n");
+        out.append("# TYPE sunshine_admission_total counter\n");
+        out.append("sunshine_admission_total{outcome=\"admitted\"} ").append(getAdmittedCount()).append('\n');
+        out.append("sunshine_admission_total{outcome=\"shed\"} ").append(getShedCount()).append('\n');
+
+        out.append("# HELP sunshine_requests_in_flight Admitted requests whose responses are not yet sent.\n");
+        out.append("# TYPE sunshine_requests_in_flight gauge\n");
+        out.append("sunshine_requests_in_flight ").append(mInFlight.get()).append('\n');
+
+        out.append("# HELP sunshine_accept_queue_wait_seconds Time accepted connections waited for a thread.\n");
+        out.append("# TYPE sunshine_accept_queue_wait_seconds histogram\n");
+        writeHistogram(out, "sunshine_accept_queue_wait_seconds", "", mAcceptQueueWait);
+    }
+
+    private static void writeHistograms(StringBuilder out, String name, String help, LatencyHistogram[] byRoute) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        for (int route = 0; route < ROUTE_NAMES.length; route++) {
+            writeHistogram(out, name, "route=\"" + ROUTE_NAMES[route] + "\"", byRoute[route]);
+        }
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        long[] buckets = histogram.getBucketCounts();
+        String separator = labels.length() == 0 ? "" : ",";
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i];
+            String bound = i < LatencyHistogram.BOUND_LABELS.length ? LatencyHistogram.BOUND_LABELS[i] : "+Inf";
+            out.append(name).append("_bucket{").append(labels).append(separator)
+                    .append("le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        String braced = labels.length() == 0 ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braced).append(' ')
+                .append(histogram.getSumNanos() / 1e9).append('\n');
+        out.append(name).append("_count").append(braced).append(' ').append(cumulative).append('\n');
+    }
+}
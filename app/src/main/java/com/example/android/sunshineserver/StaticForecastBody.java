@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+/**
+ * A response body that never changes except for its "dt" timestamps.  The body is encoded to
+ * UTF-8 once, split around the timestamp slots, and each render only copies the fixed segments
+ * and writes the digits of each day's timestamp between them.
+ */
+class StaticForecastBody {
+    // mSegments[i] comes before the timestamp of day i; the last segment closes the body
+    private final byte[][] mSegments;
+    private final int mFixedLength;
+
+    /**
+     * A compressed rendering, keyed by the second of the time it was rendered for.  Static
+     * forecasts are rendered for startOfDay(time), so the key only changes at UTC midnight and
+     * each day's body is compressed once and shared by every request for it.
+     */
+    private static class Compressed {
+        final long mSecond;
+        final byte[] mBody;
+
+        Compressed(long second, byte[] body) {
+            mSecond = second;
+            mBody = body;
+        }
+    }
+
+    private volatile Compressed mGzip;
+    private volatile Compressed mDeflate;
+
+    /**
+     * A plain rendering and its entity tag.
+     */
+    private static class Rendering {
+        final long mTime;
+        final byte[] mBody;
+        final String mEntityTag;
+
+        Rendering(long time, byte[] body) {
+            mTime = time;
+            mBody = body;
+            mEntityTag = entityTag(body);
+        }
+    }
+
+    private volatile Rendering mRendering;
+
+    /**
+     * @param segments the UTF-8 text surrounding each timestamp slot, so one more than the number
+     *                 of days
+     */
+    StaticForecastBody(byte[][] segments) {
+        mSegments = segments;
+        int length = 0;
+        for (byte[] segment : segments) {
+            length += segment.length;
+        }
+        mFixedLength = length;
+    }
+
+    int getDayCount() {
+        return mSegments.length - 1;
+    }
+
+    /**
+     * @param time the time of the first day, in milliseconds
+     * @return the UTF-8 encoded body, with day i stamped (time + i days) in seconds
+     */
+    byte[] render(long time) {
+        int days = getDayCount();
+        int length = mFixedLength;
+        for (int i = 0; i < days; i++) {
+            length += digitCount(dayTime(time, i));
+        }
+        byte[] body = new byte[length];
+        int pos = 0;
+        for (int i = 0; i < days; i++) {
+            System.arraycopy(mSegments[i], 0, body, pos, mSegments[i].length);
+            pos += mSegments[i].length;
+            pos = writeDigits(body, pos, dayTime(time, i));
+        }
+        System.arraycopy(mSegments[days], 0, body, pos, mSegments[days].length);
+        return body;
+    }
+
+    /**
+     * @return render(time), kept until a different time is asked for; do not modify
+     */
+    byte[] renderShared(long time) {
+        return getRendering(time).mBody;
+    }
+
+    /**
+     * @return the strong entity tag of render(time)
+     */
+    String getEntityTag(long time) {
+        return getRendering(time).mEntityTag;
+    }
+
+    private Rendering getRendering(long time) {
+        Rendering cached = mRendering;
+        if (cached == null || cached.mTime != time) {
+            // racing threads may both render; either result is correct
+            cached = new Rendering(time, render(time));
+            mRendering = cached;
+        }
+        return cached;
+    }
+
+    /**
+     * @return a strong entity tag for body: a quoted 64-bit FNV-1a hash of its bytes
+     */
+    static String entityTag(byte[] body) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : body) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return "\"" + Long.toHexString(hash) + "\"";
+    }
+
+    /**
+     * @param encoding ContentEncoding.GZIP or ContentEncoding.DEFLATE
+     * @return render(time) compressed with the given coding; do not modify
+     */
+    byte[] renderCompressed(long time, String encoding) {
+        boolean gzip = ContentEncoding.GZIP.equals(encoding);
+        long second = time / 1000;
+        Compressed cached = gzip ? mGzip : mDeflate;
+        if (cached == null || cached.mSecond != second) {
+            // racing threads may both compress; either result is correct
+            cached = new Compressed(second, ContentEncoding.compress(renderShared(time), encoding));
+            if (gzip) {
+                mGzip = cached;
+            } else {
+                mDeflate = cached;
+            }
+        }
+        return cached.mBody;
+    }
+
+    private static long dayTime(long time, int day) {
+        return (time + day * WeatherCommandHandler.DAY_IN_MILLIS) / 1000;
+    }
+
+    private static int digitCount(long value) {
+        int count = value < 0 ? 2 : 1;
+        value = Math.abs(value);
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+
+    private static int writeDigits(byte[] buffer, int pos, long value) {
+        int end = pos + digitCount(value);
+        if (value < 0) {
+            buffer[pos] = '-';
+            value = -value;
+        }
+        int i = end;
+        do {
+            buffer[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        return end;
+    }
+}
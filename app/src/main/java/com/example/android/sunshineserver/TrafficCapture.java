@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.RequestLine;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records every request the server receives, with its full request line, headers, arrival time
+ * and connection, so that TrafficReplay can send the same traffic again later.  Like RequestLog,
+ * requests are queued by the interceptor and written in batches from a background thread, and
+ * requests that arrive while the queue is full are dropped and counted rather than blocking.
+ *
+ * Each start() writes a new file, WeatherTraffic-<start millis>.cap in the LogSink's log
+ * directory, in the format described in CapturedRequest.  Capture stops once a file holds
+ * sMaxCaptureBytes.
+ */
+public class TrafficCapture {
+    static private final String LOG_TAG = TrafficCapture.class.getSimpleName();
+
+    public static final int QUEUE_CAPACITY = 4096;
+    public static final int FLUSH_BATCH_SIZE = 256;
+    public static final long FLUSH_INTERVAL_MILLIS = 250;
+
+    public static long sMaxCaptureBytes = 64 * 1024 * 1024;
+
+    static final String FILE_PREFIX = "WeatherTraffic-";
+    static final String FILE_SUFFIX = ".cap";
+
+    // HttpContext attribute holding the capture's id for a connection
+    static final String ATTR_CONNECTION_ID = "sunshine.capture-connection";
+
+    private final LogSink mLogSink;
+    private final ArrayBlockingQueue<CapturedRequest> mQueue =
+            new ArrayBlockingQueue<CapturedRequest>(QUEUE_CAPACITY);
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mConnections = new AtomicLong();
+    private volatile boolean mRunning = false;
+    private volatile long mStartNanos;
+    private volatile File mFile;
+    private Thread mWriterThread;
+
+    public TrafficCapture(LogSink logSink) {
+        mLogSink = logSink;
+    }
+
+    /**
+     * @return the file being written, or last written, or null before the first start()
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return the number of requests left out because the writer could not keep up or the file
+     * was full
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return an interceptor to add before any other, so it sees requests as they arrived
+     */
+    public HttpRequestInterceptor getRequestInterceptor() {
+        return new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context) {
+                if (mRunning) {
+                    capture(request, context);
+                }
+            }
+        };
+    }
+
+    private void capture(HttpRequest request, HttpContext context) {
+        long timeMicros = (System.nanoTime() - mStartNanos) / 1000;
+        Long connection = (Long) context.getAttribute(ATTR_CONNECTION_ID);
+        if (connection == null) {
+            connection = mConnections.incrementAndGet();
+            context.setAttribute(ATTR_CONNECTION_ID, connection);
+        }
+        Header[] headers = request.getAllHeaders();
+        String[] fields = new String[headers.length * 2];
+        for (int i = 0; i < headers.length; i++) {
+            fields[i * 2] = headers[i].getName();
+            fields[i * 2 + 1] = headers[i].getValue();
+        }
+        RequestLine line = request.getRequestLine();
+        if (!mQueue.offer(new CapturedRequest(timeMicros, connection, line.getMethod(), line.getUri(),
+                line.getProtocolVersion().toString(), fields))) {
+            mDropped.incrementAndGet();
+        }
+    }
+
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        final long startMillis = System.currentTimeMillis();
+        mStartNanos = System.nanoTime();
+        mFile = new File(mLogSink.getLogDirectory(), FILE_PREFIX + startMillis + FILE_SUFFIX);
+        mRunning = true;
+        mWriterThread = new Thread("TrafficCapture-writer") {
+            @Override
+            public void run() {
+                writeLoop(mFile, startMillis);
+            }
+        };
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * Stops the writer after it has written everything already queued.
+     */
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mWriterThread.interrupt();
+        try {
+            mWriterThread.join(1000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        mWriterThread = null;
+        if (mDropped.get() > 0) {
+            mLogSink.log(LogSink.WARN, LOG_TAG, mDropped.get() + " requests left out of " + mFile, null);
+        }
+    }
+
+    private void writeLoop(File file, long startMillis) {
+        ArrayList<CapturedRequest> batch = new ArrayList<CapturedRequest>(FLUSH_BATCH_SIZE);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+            CapturedRequest.Encoder encoder = new CapturedRequest.Encoder(out, startMillis);
+            long lastFlush = System.currentTimeMillis();
+            boolean pending = false;
+            while (mRunning || !mQueue.isEmpty()) {
+                CapturedRequest first = null;
+                try {
+                    first = mQueue.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // stop() wakes us up; drain whatever is left on the way out
+                }
+                if (first != null) {
+                    batch.add(first);
+                    mQueue.drainTo(batch, FLUSH_BATCH_SIZE - 1);
+                    for (CapturedRequest request : batch) {
+                        if (out.size() < sMaxCaptureBytes) {
+                            encoder.write(request);
+                        } else {
+                            mDropped.incrementAndGet();
+                        }
+                    }
+                    batch.clear();
+                    pending = true;
+                }
+                long now = System.currentTimeMillis();
+                if (pending && now - lastFlush >= FLUSH_INTERVAL_MILLIS) {
+                    out.flush();
+                    pending = false;
+                    lastFlush = now;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads, on the JVMs that have them (Java 21 and later).  The server is built for
+ * Android and Java 7, so everything here goes through reflection and reports "unsupported"
+ * anywhere else, including on devices.
+ *
+ * A virtual thread that blocks inside a synchronized block or method pins its carrier thread
+ * until it leaves the block (before Java 24).  The request path avoids monitors for that reason,
+ * using java.util.concurrent locks instead.  The synchronized sections that remain, such as
+ * HttpServer.startServer()/stopServer() and RequestLog's writer start/stop, only run on
+ * platform threads.  To catch any that a virtual thread does reach, start the JVM with
+ * -Djdk.tracePinnedThreads=short (or =full), or call tracePinnedThreads() before the first
+ * virtual thread starts.  On Java 24 and later, record the jdk.VirtualThreadPinned JFR event
+ * instead.
+ *
+ * ThreadLocal caches, like WeatherCommandHandler's writers, are per connection on virtual
+ * threads rather than per worker.
+ */
+final class VirtualThreads {
+    static private final String LOG_TAG = VirtualThreads.class.getSimpleName();
+
+    // the JDK's own switch for printing a stack trace whenever a virtual thread pins
+    static final String TRACE_PINNED_THREADS = "jdk.tracePinnedThreads";
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if this JVM can run virtual threads
+     */
+    static boolean isSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param namePrefix each thread is named namePrefix followed by a counter
+     * @return an executor that starts a new virtual thread for every task, or null if this JVM
+     * has no virtual threads
+     */
+    static ExecutorService newThreadPerTaskExecutor(String namePrefix, LogSink logSink) {
+        if (!isSupported()) {
+            return null;
+        }
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        } catch (Exception e) {
+            logSink.log(LogSink.WARN, LOG_TAG, "Virtual threads are unavailable", e);
+            return null;
+        }
+    }
+
+    /**
+     * Asks the JVM to print a stack trace whenever a virtual thread blocks while pinned.  Only
+     * takes effect if called before the first virtual thread is created, and only before Java 24.
+     *
+     * @param mode "short" for the frames holding monitors, "full" for the whole stack
+     */
+    static void tracePinnedThreads(String mode) {
+        System.setProperty(TRACE_PINNED_THREADS, mode);
+    }
+}
@@ -15,31 +15,36 @@
  */
 package com.example.android.sunshineserver;
 
-import android.content.Context;
-import android.content.SharedPreferences;
-import android.net.Uri;
-import android.text.format.DateUtils;
-
-import org.apache.http.HttpEntity;
+import org.apache.http.Header;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.entity.ContentProducer;
-import org.apache.http.entity.EntityTemplate;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 
 public class WeatherCommandHandler implements HttpRequestHandler {
     public static final String SHARED_PREFERENCES = "WeatherControl";
     public static final String LOGFILE = "WeatherLog";
     public static final String PREF_SERVER_MODE = "ServerMode";
     public static final String PREF_SERVER_ERROR = "ServerError";
+    public static final String PREF_FORECAST_DAYS = "ForecastDays";
+    public static final String PREF_CACHE_TTL_SECONDS = "CacheTtlSeconds";
+    public static final String PREF_NETWORK_SHAPING = "NetworkShaping";
+    public static final String PREF_DELAY_DISTRIBUTION = "DelayDistribution";
+    public static final String PREF_DELAY_MILLIS = "DelayMillis";
+    public static final String PREF_DELAY_JITTER_MILLIS = "DelayJitterMillis";
+    public static final String PREF_DELAY_SPIKE_PERCENT = "DelaySpikePercent";
+    public static final String PREF_BANDWIDTH_BYTES_PER_SECOND = "BandwidthBytesPerSecond";
 
     public static final int SERVER_MODE_RANDOM = 0;
     public static final int SERVER_MODE_STATIC = 1;
@@ -50,10 +55,58 @@ public class WeatherCommandHandler implements HttpRequestHandler {
     public static final long HOUR_IN_MILLIS = MINUTE_IN_MILLIS * 60;
     public static final long DAY_IN_MILLIS = HOUR_IN_MILLIS * 24;
 
-    private Context context = null;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final String CONTENT_TYPE_JSON = "application/json; charset=UTF-8";
+
+    // conditional requests, for static forecasts
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String CACHE_CONTROL = "Cache-Control";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    // caches may keep static forecasts, but must check back since the server mode can change
+    private static final String STATIC_CACHE_CONTROL = "public, no-cache";
+
+    private static final ThreadLocal<SimpleDateFormat> sHttpDates = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format;
+        }
+    };
+
+    // a forecast is FORECAST_HEADER, the day count, FORECAST_LIST, the days, then FORECAST_FOOTER
+    private static final byte[] FORECAST_HEADER = ForecastJsonWriter.ascii("{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},\"country\":\"US\",\"population\":0},\"cod\":\"200\",\"message\":0.0158,\"cnt\":");
+    private static final byte[] FORECAST_LIST = ForecastJsonWriter.ascii(",\"list\":[");
+    private static final byte[] FORECAST_FOOTER = ForecastJsonWriter.ascii("]}");
+
+    // the largest "cnt" served, and the count "bulk=1" asks for when there is no "cnt"
+    public static final int MAX_FORECAST_DAYS = 1000000;
+    public static final int BULK_FORECAST_DAYS = 10000;
+
+    // forecasts longer than this are generated while they are sent instead of up front
+    static final int MAX_BUFFERED_DAYS = 64;
+
+    private final ServerClock clock;
+    private final ServerConfigMonitor config;
+    private final RequestLog requestLog;
+
+    // random forecasts by location, so repeated queries for a place see the same weather
+    private final ForecastCache forecastCache = new ForecastCache(ForecastCache.DEFAULT_MAX_ENTRIES,
+            new ForecastCache.Loader() {
+                @Override
+                public byte[] load(String key) {
+                    // keys are "days:location"
+                    int colon = key.indexOf(':');
+                    int days = Integer.parseInt(key.substring(0, colon));
+                    return generateRandomForecast(sRandoms.get(), null, key.substring(colon + 1), days,
+                            clock.currentTimeMillis());
+                }
+            });
 
-    public WeatherCommandHandler(Context context) {
-        this.context = context;
+    public WeatherCommandHandler(ServerClock clock, ServerConfigMonitor config, RequestLog requestLog) {
+        this.clock = clock;
+        this.config = config;
+        this.requestLog = requestLog;
     }
 
     private static long getWeatherDataStartDate() {
@@ -61,259 +114,19 @@ public class WeatherCommandHandler implements HttpRequestHandler {
         return date;
     }
 
-    private static final int sWeatherConditions[] = { 200, 201, 202, 203, 204, 205, 206, 207, 209, 210, 211, 212, 213,
-            214, 215, 216, 217, 218, 219, 220, 221, 222, 223, 224, 225, 226, 227, 228, 229, 230, 231, 232, // storm
-            300, 301, 302, 303, 304, 305, 306, 307, 308, 309, 310, 311, 312, 313, 314, 315, 316, 317, 318, 319, 320,
-            321, // light rain
-            500, 501, 502, 503, 504, // rain
-            511, // snow
-            520, // rain
-            531, // ragged shower
-            600, 601, 602, 611, 612, 615, 616, 620, 621, 622, // snow
-            701, 711, 721, 731, 741, 751, // fog
-            761, 762, 771, 781, // storm
-            800, // clear
-            801, // light clouds
-            802, 803, 804, // clouds
-            900, 901, 902, 903, 904, 905, 906, 951, 952, 953, 954, 955, 956, 957, 958, 959, 960, 961, 962 };
+    // the conditions random mode picks from
+    private static final int sWeatherConditions[] = WeatherConditions.getIds();
 
     public static String getStringForWeatherCondition(int weatherId) {
-        // Based on weather code data found at:
-        // http://bugs.openweathermap.org/projects/api/wiki/Weather_Condition_Codes
-        String stringRet;
-        if (weatherId >= 200 && weatherId <= 232) {
-            stringRet = "Storm";
-        } else if (weatherId >= 300 && weatherId <= 321) {
-            stringRet = "Light Rain";
-        } else switch (weatherId) {
-            case 500:
-                stringRet = "Light Rain";
-                break;
-
-            case 501:
-                stringRet = "Moderate Rain";
-                break;
-
-            case 502:
-                stringRet = "Heavy Rain";
-                break;
-
-            case 503:
-                stringRet = "Intense Rain";
-                break;
-
-            case 504:
-                stringRet = "Extreme Rain";
-                break;
-
-            case 511:
-                stringRet = "Freezing Rain";
-                break;
-
-            case 520:
-                stringRet = "Light Shower";
-                break;
-
-            case 521:
-                stringRet = "Shower";
-                break;
-
-            case 522:
-                stringRet = "Heavy Shower";
-                break;
-
-            case 531:
-                stringRet = "Ragged Shower";
-                break;
-
-            case 600:
-                stringRet = "Light Snow";
-                break;
-
-            case 601:
-                stringRet = "Snow";
-                break;
-
-            case 602:
-                stringRet = "Heavy Snow";
-                break;
-
-            case 611:
-                stringRet = "Sleet";
-                break;
-
-            case 612:
-                stringRet = "Shower Sleet";
-                break;
-
-            case 615:
-                stringRet = "Rain and Snow";
-                break;
-            // light rain and snow
-            case 616:
-                stringRet = "Rain and Snow";
-                break;
-
-            case 620:
-                stringRet = "Shower Snow";
-                break;
-            // light shower snow
-            case 621:
-                stringRet = "Shower Snow";
-                break;
-
-            case 622:
-                stringRet = "Shower Snow";
-                break;
-            // heavy shower snow
-            case 701:
-                stringRet = "Mist";
-                break;
-
-            case 711:
-                stringRet = "Smoke";
-                break;
-
-            case 721:
-                stringRet = "Haze";
-                break;
-
-            case 731:
-                stringRet = "Sand, Dust";
-                break;
-
-            case 741:
-                stringRet = "Fog";
-                break;
-
-            case 751:
-                stringRet = "Sand";
-                break;
-
-            case 761:
-                stringRet = "Dust";
-                break;
-
-            case 762:
-                stringRet = "Volcanic Ash";
-                break;
-
-            case 771:
-                stringRet = "Squalls";
-                break;
-
-            case 781:
-                stringRet = "Tornado";
-                break;
-
-            case 800:
-                stringRet = "Clear";
-                break;
-
-            case 801:
-                stringRet = "Mostly Clear";
-                break;
-
-            case 802:
-                stringRet = "Scattered Clouds";
-                break;
-
-            case 803:
-                stringRet = "Broken Clouds";
-                break;
-
-            case 804:
-                stringRet = "Overcast Clouds";
-                break;
-
-            case 900:
-                stringRet = "Tornado";
-                break;
-
-            case 901:
-                stringRet = "Tropical Storm";
-                break;
-
-            case 902:
-                stringRet = "Hurricane";
-                break;
-
-            case 903:
-                stringRet = "Cold";
-                break;
-
-            case 904:
-                stringRet = "Hot";
-                break;
-
-            case 905:
-                stringRet = "Windy";
-                break;
-
-            case 906:
-                stringRet = "Hail";
-                break;
-
-            case 951:
-                stringRet = "Calm";
-                break;
-
-            case 952:
-                stringRet = "Light Breeze";
-                break;
-
-            case 953:
-                stringRet = "Gentle Breeze";
-                break;
-
-            case 954:
-                stringRet = "Breeze";
-                break;
-
-            case 955:
-                stringRet = "Fresh Breeze";
-                break;
-
-            case 956:
-                stringRet = "Strong Breeze";
-                break;
-
-            case 957:
-                stringRet = "High Wind";
-                break;
-
-            case 958:
-                stringRet = "Gale";
-                break;
-
-            case 959:
-                stringRet = "Severe Gale";
-                break;
-
-            case 960:
-                stringRet = "Storm";
-                break;
-
-            case 961:
-                stringRet = "Violent Storm";
-                break;
-
-            case 962:
-                stringRet = "Hurricane";
-                break;
-
-            default:
-                stringRet = "Unknown";
-        }
-        return stringRet;
+        return WeatherConditions.getName(weatherId);
     }
 
-    String generateDailyWeather(long time) {
+    void generateDailyWeather(ForecastJsonWriter writer, ForecastRandom random, long time) {
         double lowTempMin, highTempMax, humidityMin, humidityMax, windSpeedMin, windSpeedMax;
-        int weatherIndex = (int)(Math.random() * sWeatherConditions.length * 2);
+        int weatherIndex = (int)(random.nextDouble() * sWeatherConditions.length * 2);
         int weatherId;
         if ( weatherIndex >= sWeatherConditions.length ) {
-            weatherId = (int)(800.0f + Math.random() * 4);
+            weatherId = (int)(800.0f + random.nextDouble() * 4);
         } else {
             weatherId = sWeatherConditions[weatherIndex];
         }
@@ -338,11 +151,11 @@ public class WeatherCommandHandler implements HttpRequestHandler {
             humidityMin = 10.0f; humidityMax = 30.0f;
         }
         double tempSpread = highTempMax - lowTempMin;
-        double lowTemp = lowTempMin + Math.random() * tempSpread/2.0f;
+        double lowTemp = lowTempMin + random.nextDouble() * tempSpread/2.0f;
         tempSpread = highTempMax - lowTemp;
-        double highTemp = lowTemp + Math.random() * tempSpread;
-        double pressure = 950 + Math.random() * 100;
-        double humidity = humidityMin + Math.random() * (humidityMax-humidityMin);
+        double highTemp = lowTemp + random.nextDouble() * tempSpread;
+        double pressure = 950 + random.nextDouble() * 100;
+        double humidity = humidityMin + random.nextDouble() * (humidityMax-humidityMin);
 
         switch (weatherId) {
             case 781:
@@ -370,11 +183,10 @@ public class WeatherCommandHandler implements HttpRequestHandler {
                 break;
         }
 
-        double windSpeed = windSpeedMin + Math.random() * (windSpeedMax-windSpeedMin);
-        int direction = (int)(Math.random() * 360.0f);
+        double windSpeed = windSpeedMin + random.nextDouble() * (windSpeedMax-windSpeedMin);
+        int direction = (int)(random.nextDouble() * 360.0f);
 
-        return String.format("{\"dt\":%d,\"temp\":{\"day\":29.49,\"min\":%.2f,\"max\":%.2f,\"night\":9.52,\"eve\":21.09,\"morn\":15.42},\"pressure\":%.2f,\"humidity\":%.0f,\"weather\":[{\"id\":%d,\"main\":\"%s\",\"description\":\"%s\",\"icon\":\"02d\"}],\"speed\":%.2f,\"deg\":%d,\"clouds\":20}",
-                time, lowTemp, highTemp, pressure, humidity, weatherId, getStringForWeatherCondition(weatherId), getStringForWeatherCondition(weatherId), windSpeed, direction);
+        writer.day(time, lowTemp, highTemp, pressure, humidity, weatherId, windSpeed, direction);
     }
 
     // static well-known weather output
@@ -425,20 +237,77 @@ public class WeatherCommandHandler implements HttpRequestHandler {
     };
 
     String generateStaticWeather(long time) {
-        StringBuilder sb = new StringBuilder();
+        ForecastJsonWriter writer = new ForecastJsonWriter(4 * 1024);
         for (int i = 0; i < staticWeather.length; i++ ) {
             StaticWeatherDay sd = staticWeather[i];
             long dayTime = time + (i * DAY_IN_MILLIS);
             dayTime /= 1000;
-            if ( i > 0 ) sb.append(",");
-            sb.append(String.format("{\"dt\":%d,\"temp\":{\"day\":29.49,\"min\":%.2f,\"max\":%.2f,\"night\":9.52,\"eve\":21.09,\"morn\":15.42},\"pressure\":%.2f,\"humidity\":%.0f,\"weather\":[{\"id\":%d,\"main\":\"%s\",\"description\":\"%s\",\"icon\":\"02d\"}],\"speed\":%.2f,\"deg\":%d,\"clouds\":20}",
-                    dayTime, sd.mLowTemp, sd.mHighTemp, sd.mPressure, sd.mHumidity, sd.mWeatherId, getStringForWeatherCondition(sd.mWeatherId), getStringForWeatherCondition(sd.mWeatherId), sd.mWindSpeed, sd.mDirection));
+            if ( i > 0 ) writer.raw(',');
+            writer.day(dayTime, sd.mLowTemp, sd.mHighTemp, sd.mPressure, sd.mHumidity, sd.mWeatherId, sd.mWindSpeed, sd.mDirection);
+        }
+        return new String(writer.toByteArray(), UTF_8);
+    }
+
+    /*
+        The whole static response, pre-encoded with a slot for each day's timestamp.
+     */
+    private static final StaticForecastBody sStaticForecast = buildStaticForecast();
+
+    private static StaticForecastBody buildStaticForecast() {
+        byte[][] segments = new byte[staticWeather.length + 1][];
+        ForecastJsonWriter writer = new ForecastJsonWriter(1024);
+        writer.raw(FORECAST_HEADER).number(staticWeather.length).raw(FORECAST_LIST).raw(ForecastJsonWriter.DAY_START);
+        for (int i = 0; i < staticWeather.length; i++) {
+            segments[i] = writer.toByteArray();
+            writer.reset();
+            StaticWeatherDay sd = staticWeather[i];
+            writer.dayTail(sd.mLowTemp, sd.mHighTemp, sd.mPressure, sd.mHumidity, sd.mWeatherId, sd.mWindSpeed, sd.mDirection);
+            if (i + 1 < staticWeather.length) {
+                writer.raw(',').raw(ForecastJsonWriter.DAY_START);
+            } else {
+                writer.raw(FORECAST_FOOTER);
+            }
+        }
+        segments[staticWeather.length] = writer.toByteArray();
+        return new StaticForecastBody(segments);
+    }
+
+    // one writer per server thread, reused for every random forecast it renders
+    private static final ThreadLocal<ForecastJsonWriter> sWriters = new ThreadLocal<ForecastJsonWriter>() {
+        @Override
+        protected ForecastJsonWriter initialValue() {
+            return new ForecastJsonWriter(8 * 1024);
+        }
+    };
+
+    // likewise one generator per thread, so random forecasts never contend on a shared lock
+    private static final ThreadLocal<ForecastRandom> sRandoms = new ThreadLocal<ForecastRandom>() {
+        @Override
+        protected ForecastRandom initialValue() {
+            return new ForecastRandom(System.nanoTime() ^ Thread.currentThread().getId() * 0x9e3779b97f4a7c15L);
         }
-        return sb.toString();
+    };
+
+    /**
+     * @return this thread's generator for unseeded random forecasts
+     */
+    static ForecastRandom getThreadRandom() {
+        return sRandoms.get();
+    }
+
+    /**
+     * @return the number of days asked for with "cnt", or with "bulk", clamped to
+     * [1, MAX_FORECAST_DAYS]
+     */
+    static int parseDayCount(QueryParams params, int defaultDays) {
+        int days = params.is(QueryParams.BULK, "1") ? BULK_FORECAST_DAYS : defaultDays;
+        // a "cnt" that is not a number keeps the default, as the real service does
+        days = params.getInt(QueryParams.CNT, days);
+        return Math.max(1, Math.min(days, MAX_FORECAST_DAYS));
     }
 
-    public static File getLogFile(Context c) {
-        File f = new File(c.getFilesDir(), LOGFILE);
+    public static File getLogFile(LogSink logSink) {
+        File f = new File(logSink.getLogDirectory(), LOGFILE);
         if ( !f.exists() ) try {
             f.createNewFile();
         } catch (IOException e) {
@@ -447,92 +316,208 @@ public class WeatherCommandHandler implements HttpRequestHandler {
         return f;
     }
 
-    private String getMessageForErrorCode(int error) {
+    private static String getMessageForErrorCode(int error) {
         switch(error) {
             case 401:
                 return "Invalid API key. Please see http://openweathermap.org/faq#error401 for more info.";
             case 404:
                 return "Location not found.";
+            case 503:
+                return "Server busy. Please retry later.";
             default:
                 return "Error: " + error;
         }
     }
 
-    private String getErrorResponse(int responseCode) {
+    static String getErrorResponse(int responseCode) {
         return new String().format("{\"cod\":%d, \"message\": \"%s\"}", responseCode, getMessageForErrorCode(responseCode));
     }
 
     @Override
     public void handle(HttpRequest request, final HttpResponse response,
                        HttpContext httpContext) throws HttpException, IOException {
-        SharedPreferences preferences = context.getSharedPreferences(SHARED_PREFERENCES, Context.MODE_PRIVATE);
-        final int mode = preferences.getInt(PREF_SERVER_MODE, SERVER_MODE_STATIC);
-        final long time = System.currentTimeMillis();
-        Uri uri = Uri.parse(request.getRequestLine().getUri());
+        ServerConfig serverConfig = config.get();
+        final int mode = serverConfig.getServerMode();
+        final long time = clock.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        ServerMetrics.tag(httpContext, ServerMetrics.ROUTE_FORECAST, mode);
+        QueryParams params = QueryParams.forContext(httpContext).parse(request.getRequestLine().getUri());
 
         // "handle" both search queries and lat/long queries
-        String q = uri.getQueryParameter("q");
-        if ( null == q ) {
-            String lat = uri.getQueryParameter("lat");
-            String lon = uri.getQueryParameter("lon");
-            if ( lat != null && lon != null ) {
-                q = lat + "," + lon;
+        String q = params.getLocation();
+        // if there is no query, return error 404 (not found)
+        final int responseCode = mode == SERVER_MODE_ERROR ? serverConfig.getErrorCode() : q.length() == 0 ? 404 : 200;
+        response.setStatusCode(responseCode);
+        response.setHeader("Content-Type", CONTENT_TYPE_JSON);
+        try {
+            setBody(request, response, mode, responseCode, time, q, params.getLong(QueryParams.SEED),
+                    parseDayCount(params, serverConfig.getForecastDays()), serverConfig.getCacheTtlMillis());
+        } finally {
+            long latencyMicros = (System.nanoTime() - startNanos) / 1000;
+            // the final status, which may be 304 rather than responseCode
+            requestLog.log(time, mode, response.getStatusLine().getStatusCode(),
+                    (int) Math.min(latencyMicros, Integer.MAX_VALUE), q);
+        }
+    }
+
+    /**
+     * @param seed the request's "seed", or null if it has none
+     */
+    private void setBody(HttpRequest request, HttpResponse response, int mode, int responseCode,
+                         final long time, final String q, final Long seed, int days, long cacheTtl) throws HttpException {
+        // static forecasts are stamped with the start of the day, so they only change once a day
+        final long staticTime = startOfDay(time);
+        byte[] body;
+        // error mode always sends the error body, even when the configured code is 200
+        if ( mode == SERVER_MODE_ERROR || responseCode != 200 ) {
+            body = getErrorResponse(responseCode).getBytes(UTF_8);
+        } else if ( days > MAX_BUFFERED_DAYS ) {
+            // too long to hold in memory; generated as it is sent, and never cached
+            ForecastStreamEntity.DaySource source;
+            if ( mode == SERVER_MODE_STATIC ) {
+                source = new ForecastStreamEntity.DaySource() {
+                    @Override
+                    public void writeDay(ForecastJsonWriter writer, int day) {
+                        writeStaticDay(writer, staticTime, day);
+                    }
+                };
+            } else {
+                source = new ForecastStreamEntity.DaySource() {
+                    private ForecastRandom random;
+
+                    @Override
+                    public void writeDay(ForecastJsonWriter writer, int day) {
+                        // resolved on the thread that writes the body, which may not be this one
+                        if (random == null) random = seed != null ? new ForecastRandom(seed) : sRandoms.get();
+                        if (seed != null) random.setSeed(seed, q, day);
+                        generateDailyWeather(writer, random, (time + day * DAY_IN_MILLIS) / 1000);
+                    }
+                };
+            }
+            response.setEntity(new ForecastStreamEntity(forecastHead(days), days, source, FORECAST_FOOTER));
+            return;
+        } else if ( mode == SERVER_MODE_STATIC ) {
+            String encoding = ContentEncoding.negotiate(request);
+            String entityTag;
+            if ( days != sStaticForecast.getDayCount() ) {
+                body = generateStaticForecast(staticTime, days);
+                entityTag = StaticForecastBody.entityTag(body);
             } else {
-                q = "";
+                // rendered once a day and shared
+                body = sStaticForecast.renderShared(staticTime);
+                entityTag = sStaticForecast.getEntityTag(staticTime);
+            }
+            // the tag of the representation this client gets, which is compressed if it can be
+            String variantTag = encoding != null && body.length >= ResponseCompression.MIN_COMPRESS_LENGTH
+                    ? ContentEncoding.variantTag(entityTag, encoding) : entityTag;
+            response.setHeader(ContentEncoding.VARY, ContentEncoding.ACCEPT_ENCODING);
+            response.setHeader(CACHE_CONTROL, STATIC_CACHE_CONTROL);
+            response.setHeader(LAST_MODIFIED, sHttpDates.get().format(new Date(staticTime)));
+            if ( ifNoneMatch(request, variantTag) ) {
+                response.setStatusCode(HttpStatus.SC_NOT_MODIFIED);
+                response.setHeader(ContentEncoding.ETAG, variantTag);
+                response.removeHeaders("Content-Type");
+                return;
+            }
+            if ( encoding != null && days == sStaticForecast.getDayCount() ) {
+                // compressed once a day and shared, so ResponseCompression leaves it alone
+                ByteArrayEntity entity = new ByteArrayEntity(sStaticForecast.renderCompressed(staticTime, encoding));
+                entity.setContentEncoding(encoding);
+                response.setHeader(ContentEncoding.ETAG, variantTag);
+                response.setEntity(entity);
+                return;
+            }
+            // ResponseCompression marks the tag as its variant's if it compresses the body
+            response.setHeader(ContentEncoding.ETAG, entityTag);
+        } else {
+            // with a seed, each (seed, location, day) always generates the same day
+            if ( seed != null ) {
+                // seeded requests get their own generator so they don't disturb the thread's sequence
+                body = generateRandomForecast(new ForecastRandom(seed), seed, q, days, time);
+            } else if ( cacheTtl > 0 ) {
+                try {
+                    body = forecastCache.get(days + ":" + ForecastCache.normalizeLocation(q), time, cacheTtl);
+                } catch (Exception e) {
+                    throw new HttpException("Forecast generation failed", e);
+                }
+            } else {
+                body = generateRandomForecast(sRandoms.get(), null, q, days, time);
             }
         }
-        File f = getLogFile(context);
-        FileWriter fw = new FileWriter(f, true);
-        String log = String.format("Weather Request at: %s - %s%s", DateUtils.formatDateTime(context, time, DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME ), q, System.getProperty("line.separator"));
-        fw.append(log);
-        fw.flush();
-        fw.close();
-        // if there is no query, return error 404 (not found)
-        final int responseCode = mode == SERVER_MODE_ERROR ? preferences.getInt(PREF_SERVER_ERROR, 404) : q.length() == 0 ? 404 : 200;
-        response.setStatusCode(responseCode);
-        HttpEntity entity = new EntityTemplate(new ContentProducer() {
-            public void writeTo(final OutputStream outstream) throws IOException {
-                OutputStreamWriter writer = new OutputStreamWriter(outstream, "UTF-8");
-                switch (mode) {
-                    case SERVER_MODE_ERROR:
-                        writer.write(getErrorResponse(responseCode));
-                        writer.flush();
-                        break;
-                    case SERVER_MODE_RANDOM:
-                        if( responseCode == 200 ) {
-                            writer.write(
-                                    "{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},\"country\":\"US\",\"population\":0},\"cod\":\"200\",\"message\":0.0158,\"cnt\":14,\"list\":[");
-                            for (int i = 0; i < 14; i++) {
-                                if (i > 0) writer.write(",");
-                                long dayTime = time + (i * DAY_IN_MILLIS);
-                                dayTime /= 1000;
-                                writer.write(generateDailyWeather(dayTime));
-                            }
-                            writer.write("]}");
-                        } else {
-                            writer.write(getErrorResponse(responseCode));
-                        }
-                        writer.flush();
-                        break;
-                    case SERVER_MODE_STATIC:
-                        if ( responseCode == 200 ) {
-                            writer.write(
-                                    "{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},\"country\":\"US\",\"population\":0},\"cod\":\"200\",\"message\":0.0158,\"cnt\":14,\"list\":[");
-                            writer.write(generateStaticWeather(time));
-                            writer.write("]}");
-                        } else {
-                            writer.write(getErrorResponse(responseCode));
-                        }
-                        writer.flush();
-                        break;
+        response.setEntity(new ByteArrayEntity(body));
+    }
+
+    /**
+     * @return the start of the UTC day time falls in
+     */
+    static long startOfDay(long time) {
+        return time - ((time % DAY_IN_MILLIS) + DAY_IN_MILLIS) % DAY_IN_MILLIS;
+    }
+
+    /**
+     * @return true if the request's If-None-Match lists entityTag, or "*"; tags are compared
+     * weakly, as RFC 7232 asks for If-None-Match
+     */
+    static boolean ifNoneMatch(HttpRequest request, String entityTag) {
+        for (Header header : request.getHeaders(IF_NONE_MATCH)) {
+            for (String candidate : header.getValue().split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("*") || candidate.equals(entityTag)) {
+                    return true;
                 }
             }
-        });
-        response.setHeader("Content-Type", "text/html");
-        response.setEntity(entity);
+        }
+        return false;
+    }
+
+    /**
+     * @return everything in a forecast of the given length before its first day
+     */
+    private static byte[] forecastHead(int days) {
+        ForecastJsonWriter writer = new ForecastJsonWriter(FORECAST_HEADER.length + FORECAST_LIST.length + 8);
+        writer.raw(FORECAST_HEADER).number(days).raw(FORECAST_LIST);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Writes day number day of a static forecast; longer forecasts repeat the static days.
+     */
+    static void writeStaticDay(ForecastJsonWriter writer, long time, int day) {
+        StaticWeatherDay sd = staticWeather[day % staticWeather.length];
+        writer.day((time + day * DAY_IN_MILLIS) / 1000, sd.mLowTemp, sd.mHighTemp, sd.mPressure, sd.mHumidity,
+                sd.mWeatherId, sd.mWindSpeed, sd.mDirection);
     }
 
-    public Context getContext() {
-        return context;
+    private static byte[] generateStaticForecast(long time, int days) {
+        ForecastJsonWriter writer = sWriters.get();
+        writer.reset();
+        writer.raw(FORECAST_HEADER).number(days).raw(FORECAST_LIST);
+        for (int i = 0; i < days; i++) {
+            if (i > 0) writer.raw(',');
+            writeStaticDay(writer, time, i);
+        }
+        writer.raw(FORECAST_FOOTER);
+        return writer.toByteArray();
+    }
+
+    /**
+     * @param seed if not null, random is reseeded from (seed, location, day) for each day
+     */
+    private byte[] generateRandomForecast(ForecastRandom random, Long seed, String location, int days, long time) {
+        ForecastJsonWriter writer = sWriters.get();
+        writer.reset();
+        writer.raw(FORECAST_HEADER).number(days).raw(FORECAST_LIST);
+        for (int i = 0; i < days; i++) {
+            if (i > 0) writer.raw(',');
+            long dayTime = time + (i * DAY_IN_MILLIS);
+            dayTime /= 1000;
+            if (seed != null) random.setSeed(seed, location, i);
+            generateDailyWeather(writer, random, dayTime);
+        }
+        writer.raw(FORECAST_FOOTER);
+        return writer.toByteArray();
     }
 }
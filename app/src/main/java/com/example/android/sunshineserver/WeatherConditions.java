@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import java.util.Arrays;
+
+/**
+ * Every weather condition the server knows about, in a table indexed by condition id.  Each
+ * entry holds the display string and its icon code, both also pre-encoded as quoted JSON strings
+ * so response writers can copy them straight into the body.
+ *
+ * Based on weather code data found at:
+ * http://bugs.openweathermap.org/projects/api/wiki/Weather_Condition_Codes
+ */
+final class WeatherConditions {
+    static final int MIN_ID = 200;
+    static final int MAX_ID = 962;
+
+    private static final String UNKNOWN_NAME = "Unknown";
+    private static final String DEFAULT_ICON = "02d";
+    private static final byte[] UNKNOWN_NAME_JSON = quoted(UNKNOWN_NAME);
+    private static final byte[] DEFAULT_ICON_JSON = quoted(DEFAULT_ICON);
+
+    private static final String[] sNames = new String[MAX_ID - MIN_ID + 1];
+    private static final byte[][] sNamesJson = new byte[MAX_ID - MIN_ID + 1][];
+    private static final byte[][] sIconsJson = new byte[MAX_ID - MIN_ID + 1][];
+
+    // every id in the table, in ascending order
+    private static int[] sIds = new int[0];
+
+    static {
+        define(200, 232, "Storm", "11d");
+        define(300, 321, "Light Rain", "09d");
+        define(500, "Light Rain", "10d");
+        define(501, "Moderate Rain", "10d");
+        define(502, "Heavy Rain", "10d");
+        define(503, "Intense Rain", "10d");
+        define(504, "Extreme Rain", "10d");
+        define(511, "Freezing Rain", "13d");
+        define(520, "Light Shower", "09d");
+        define(521, "Shower", "09d");
+        define(522, "Heavy Shower", "09d");
+        define(531, "Ragged Shower", "09d");
+        define(600, "Light Snow", "13d");
+        define(601, "Snow", "13d");
+        define(602, "Heavy Snow", "13d");
+        define(611, "Sleet", "13d");
+        define(612, "Shower Sleet", "13d");
+        define(615, "Rain and Snow", "13d");   // light rain and snow
+        define(616, "Rain and Snow", "13d");
+        define(620, "Shower Snow", "13d");     // light shower snow
+        define(621, "Shower Snow", "13d");
+        define(622, "Shower Snow", "13d");     // heavy shower snow
+        define(701, "Mist", "50d");
+        define(711, "Smoke", "50d");
+        define(721, "Haze", "50d");
+        define(731, "Sand, Dust", "50d");
+        define(741, "Fog", "50d");
+        define(751, "Sand", "50d");
+        define(761, "Dust", "50d");
+        define(762, "Volcanic Ash", "50d");
+        define(771, "Squalls", "50d");
+        define(781, "Tornado", "50d");
+        define(800, "Clear", "01d");
+        define(801, "Mostly Clear", "02d");
+        define(802, "Scattered Clouds", "03d");
+        define(803, "Broken Clouds", "04d");
+        define(804, "Overcast Clouds", "04d");
+        define(900, "Tornado", "50d");
+        define(901, "Tropical Storm", "11d");
+        define(902, "Hurricane", "11d");
+        define(903, "Cold", "13d");
+        define(904, "Hot", "01d");
+        define(905, "Windy", "50d");
+        define(906, "Hail", "13d");
+        define(951, "Calm", "01d");
+        define(952, "Light Breeze", "01d");
+        define(953, "Gentle Breeze", "01d");
+        define(954, "Breeze", "02d");
+        define(955, "Fresh Breeze", "02d");
+        define(956, "Strong Breeze", "02d");
+        define(957, "High Wind", "50d");
+        define(958, "Gale", "50d");
+        define(959, "Severe Gale", "50d");
+        define(960, "Storm", "11d");
+        define(961, "Violent Storm", "11d");
+        define(962, "Hurricane", "11d");
+    }
+
+    private WeatherConditions() {
+    }
+
+    private static void define(int firstId, int lastId, String name, String icon) {
+        for (int id = firstId; id <= lastId; id++) {
+            define(id, name, icon);
+        }
+    }
+
+    private static void define(int id, String name, String icon) {
+        int index = id - MIN_ID;
+        sNames[index] = name;
+        sNamesJson[index] = quoted(name);
+        sIconsJson[index] = quoted(icon);
+        sIds = Arrays.copyOf(sIds, sIds.length + 1);
+        sIds[sIds.length - 1] = id;
+    }
+
+    private static byte[] quoted(String s) {
+        return ForecastJsonWriter.ascii("\"" + s + "\"");
+    }
+
+    private static boolean isDefined(int id) {
+        return id >= MIN_ID && id <= MAX_ID && sNames[id - MIN_ID] != null;
+    }
+
+    /**
+     * @return a copy of every condition id in the table, in ascending order
+     */
+    static int[] getIds() {
+        return sIds.clone();
+    }
+
+    static String getName(int id) {
+        return isDefined(id) ? sNames[id - MIN_ID] : UNKNOWN_NAME;
+    }
+
+    /**
+     * @return the display string as a quoted JSON string; do not modify
+     */
+    static byte[] getNameJson(int id) {
+        return isDefined(id) ? sNamesJson[id - MIN_ID] : UNKNOWN_NAME_JSON;
+    }
+
+    /**
+     * @return the icon code as a quoted JSON string; do not modify
+     */
+    static byte[] getIconJson(int id) {
+        return isDefined(id) ? sIconsJson[id - MIN_ID] : DEFAULT_ICON_JSON;
+    }
+}
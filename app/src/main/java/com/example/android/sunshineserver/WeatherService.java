@@ -36,7 +36,7 @@ public class WeatherService extends Service {
         Log.i(LOG_TAG, "Creating and starting WeatherService");
         super.onCreate();
 
-        mServer = new HttpServer(this);
+        mServer = new HttpServer(new AndroidPlatform(this));
         startServerImpl();
     }
 
@@ -64,6 +64,14 @@ public class WeatherService extends Service {
         }
     }
 
+    private void restartServerImpl() {
+        if ( mServer.isRunning() ) {
+            // the service stays started and in the foreground; only the HttpServer is rebuilt
+            mServer.stopServer();
+            mServer.startServer();
+        }
+    }
+
     @Override
     public void onDestroy() {
         Log.i(LOG_TAG, "Destroying WeatherService");
@@ -86,6 +94,11 @@ public class WeatherService extends Service {
         public void stopServer() throws RemoteException {
             stopServerImpl();
         }
+
+        @Override
+        public void restartServer() throws RemoteException {
+            restartServerImpl();
+        }
     };
 
     @Override
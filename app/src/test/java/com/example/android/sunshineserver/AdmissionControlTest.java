@@ -0,0 +1,55 @@
+package com.example.android.sunshineserver;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControlTest {
+    private static final HttpRequestHandler OK = new HttpRequestHandler() {
+        @Override
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+            response.setStatusCode(200);
+        }
+    };
+
+    private static HttpResponse serve(HttpRequestHandler handler, HttpContext context) throws Exception {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        handler.handle(new BasicHttpRequest("GET", "/data/2.5/forecast/daily?q=1"), response, context);
+        return response;
+    }
+
+    @Test
+    public void guard_shedsOnceEveryPermitIsHeld() throws Exception {
+        ServerMetrics metrics = new ServerMetrics();
+        AdmissionControl admission = new AdmissionControl(1, metrics);
+        HttpRequestHandler guarded = admission.guard(OK);
+        HttpContext first = new BasicHttpContext();
+        HttpContext second = new BasicHttpContext();
+
+        assertEquals(200, serve(guarded, first).getStatusLine().getStatusCode());
+        HttpResponse shed = serve(guarded, second);
+        assertEquals(503, shed.getStatusLine().getStatusCode());
+        assertTrue(AdmissionControl.isShed(shed));
+        assertEquals(Integer.toString(HttpServer.sRetryAfterSeconds),
+                shed.getFirstHeader(AdmissionControl.RETRY_AFTER).getValue());
+        assertTrue(EntityUtils.toString(shed.getEntity()).startsWith("{\"cod\":503,"));
+
+        admission.release(first);
+        // releasing twice must not hand out a second permit
+        admission.release(first);
+        assertEquals(200, serve(guarded, second).getStatusLine().getStatusCode());
+        assertEquals(503, serve(guarded, first).getStatusLine().getStatusCode());
+
+        assertEquals(2, metrics.getAdmittedCount());
+        assertEquals(2, metrics.getShedCount());
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.android.sunshineserver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CapturedRequestTest {
+
+    private static CapturedRequest request(long timeMicros, long connection, String uri) {
+        return new CapturedRequest(timeMicros, connection, "GET", uri, "HTTP/1.1",
+                new String[] { "User-Agent", "curl/7.88.1", "Accept-Encoding", "gzip" });
+    }
+
+    private static byte[] encode(CapturedRequest... requests) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        CapturedRequest.Encoder encoder = new CapturedRequest.Encoder(out, 1467000000123L);
+        for (CapturedRequest request : requests) {
+            encoder.write(request);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static CapturedRequest.Decoder decoder(byte[] bytes) throws IOException {
+        return new CapturedRequest.Decoder(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    public void decode_returnsEncodedRequests() throws Exception {
+        // the second arrival was queued after the third, so its time delta is negative
+        CapturedRequest[] requests = {
+                request(1500, 1, "/data/2.5/forecast/daily?q=94043"),
+                request(90000, 2, "/data/2.5/forecast/daily?q=London"),
+                request(2000, 1, "/data/2.5/forecast/daily?q=94043"),
+        };
+        CapturedRequest.Decoder decoder = decoder(encode(requests));
+        assertEquals(1467000000123L, decoder.getStartMillis());
+        for (CapturedRequest expected : requests) {
+            CapturedRequest actual = decoder.read();
+            assertEquals(expected.mTimeMicros, actual.mTimeMicros);
+            assertEquals(expected.mConnection, actual.mConnection);
+            assertEquals(expected.mMethod, actual.mMethod);
+            assertEquals(expected.mUri, actual.mUri);
+            assertEquals(expected.mProtocol, actual.mProtocol);
+            assertTrue(Arrays.equals(expected.mHeaders, actual.mHeaders));
+        }
+        assertNull(decoder.read());
+    }
+
+    @Test
+    public void encode_writesRepeatedStringsOnce() throws Exception {
+        int first = encode(request(0, 1, "/data/2.5/forecast/daily?q=94043")).length;
+        int twice = encode(request(0, 1, "/data/2.5/forecast/daily?q=94043"),
+                request(10, 1, "/data/2.5/forecast/daily?q=94043")).length;
+        // time, connection, three request line strings, header count and four header strings
+        assertEquals(10, twice - first);
+    }
+
+    @Test
+    public void read_stopsAtTruncatedEntry() throws Exception {
+        byte[] bytes = encode(request(0, 1, "/a"), request(10, 1, "/b"));
+        CapturedRequest.Decoder decoder = decoder(Arrays.copyOf(bytes, bytes.length - 3));
+        assertEquals("/a", decoder.read().mUri);
+        assertNull(decoder.read());
+    }
+
+    @Test
+    public void decoder_rejectsOtherFiles() throws Exception {
+        try {
+            decoder("Weather Request at: ".getBytes("US-ASCII"));
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // not a capture
+        }
+    }
+}
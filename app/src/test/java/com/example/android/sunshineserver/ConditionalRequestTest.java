@@ -0,0 +1,72 @@
+package com.example.android.sunshineserver;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+public class ConditionalRequestTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static HttpRequest withIfNoneMatch(String value) {
+        HttpRequest request = new BasicHttpRequest("GET", "/data/2.5/forecast/daily?q=1");
+        request.addHeader("If-None-Match", value);
+        return request;
+    }
+
+    @Test
+    public void entityTag_isQuotedAndFollowsTheBody() throws Exception {
+        String tag = StaticForecastBody.entityTag("{\"cod\":\"200\"}".getBytes(UTF_8));
+        assertTrue(tag.startsWith("\"") && tag.endsWith("\""));
+        assertEquals(tag, StaticForecastBody.entityTag("{\"cod\":\"200\"}".getBytes(UTF_8)));
+        assertFalse(tag.equals(StaticForecastBody.entityTag("{\"cod\":\"201\"}".getBytes(UTF_8))));
+        assertEquals("\"abc-gzip\"", ContentEncoding.variantTag("\"abc\"", ContentEncoding.GZIP));
+    }
+
+    @Test
+    public void ifNoneMatch_comparesWeakly() throws Exception {
+        assertTrue(WeatherCommandHandler.ifNoneMatch(withIfNoneMatch("\"abc\""), "\"abc\""));
+        assertTrue(WeatherCommandHandler.ifNoneMatch(withIfNoneMatch("\"x\", W/\"abc\""), "\"abc\""));
+        assertTrue(WeatherCommandHandler.ifNoneMatch(withIfNoneMatch("*"), "\"abc\""));
+        assertFalse(WeatherCommandHandler.ifNoneMatch(withIfNoneMatch("\"abc-gzip\""), "\"abc\""));
+        assertFalse(WeatherCommandHandler.ifNoneMatch(
+                new BasicHttpRequest("GET", "/data/2.5/forecast/daily?q=1"), "\"abc\""));
+    }
+
+    @Test
+    public void startOfDay_truncatesToUtcMidnight() throws Exception {
+        long day = 17000 * WeatherCommandHandler.DAY_IN_MILLIS;
+        assertEquals(day, WeatherCommandHandler.startOfDay(day));
+        assertEquals(day, WeatherCommandHandler.startOfDay(day + WeatherCommandHandler.DAY_IN_MILLIS - 1));
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void compress_roundTripsBothCodings() throws Exception {
+        // random bytes, so the body outgrows the stream buffers even compressed
+        byte[] body = new byte[100 * 1024];
+        new Random(42).nextBytes(body);
+        byte[] gzip = ContentEncoding.compress(body, ContentEncoding.GZIP);
+        assertArrayEquals(body, readAll(new GZIPInputStream(new ByteArrayInputStream(gzip))));
+        byte[] deflate = ContentEncoding.compress(body, ContentEncoding.DEFLATE);
+        assertArrayEquals(body, readAll(new InflaterInputStream(new ByteArrayInputStream(deflate))));
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.android.sunshineserver;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ForecastCacheTest {
+    private final AtomicInteger mLoads = new AtomicInteger();
+
+    private ForecastCache cache(int maxEntries) {
+        return new ForecastCache(maxEntries, new ForecastCache.Loader() {
+            @Override
+            public byte[] load(String location) {
+                return (location + "#" + mLoads.incrementAndGet()).getBytes();
+            }
+        });
+    }
+
+    @Test
+    public void normalizeLocation_mergesEquivalentQueries() throws Exception {
+        assertEquals("mountain view,us", ForecastCache.normalizeLocation("  Mountain   View , US "));
+        assertEquals("london,uk", ForecastCache.normalizeLocation("London,uk"));
+        assertEquals("37.39,-122.08", ForecastCache.normalizeLocation("37.386051,-122.083847"));
+        assertEquals("37.39,-122.08", ForecastCache.normalizeLocation("37.3861, -122.0838"));
+    }
+
+    @Test
+    public void get_servesSameForecastUntilExpired() throws Exception {
+        ForecastCache cache = cache(4);
+        byte[] first = cache.get("94043", 1000, 500);
+        assertSame(first, cache.get("94043", 1499, 500));
+        assertNotSame(first, cache.get("94043", 1500, 500));
+        assertEquals(2, mLoads.get());
+    }
+
+    @Test
+    public void get_evictsLeastRecentlyUsed() throws Exception {
+        ForecastCache cache = cache(2);
+        byte[] a = cache.get("a", 0, 1000);
+        cache.get("b", 0, 1000);
+        cache.get("a", 0, 1000);
+        cache.get("c", 0, 1000);    // evicts b, not a
+        assertEquals(2, cache.size());
+        assertSame(a, cache.get("a", 0, 1000));
+        cache.get("b", 0, 1000);
+        assertEquals(4, mLoads.get());
+    }
+
+    @Test
+    public void get_concurrentMissesLoadOnce() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ForecastCache cache = new ForecastCache(4, new ForecastCache.Loader() {
+            @Override
+            public byte[] load(String location) throws Exception {
+                mLoads.incrementAndGet();
+                loading.countDown();
+                release.await();
+                return new byte[1];
+            }
+        });
+        final byte[][] results = new byte[2][];
+        Thread first = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    results[0] = cache.get("paris", 0, 1000);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        first.start();
+        loading.await();
+        Thread second = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    results[1] = cache.get("paris", 0, 1000);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        second.start();
+        // release the load only once second is blocked in task.get(), so it must share it
+        while (second.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        first.join();
+        second.join();
+        assertEquals(1, mLoads.get());
+        assertSame(results[0], results[1]);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+}
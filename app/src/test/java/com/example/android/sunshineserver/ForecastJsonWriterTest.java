@@ -0,0 +1,52 @@
+package com.example.android.sunshineserver;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class ForecastJsonWriterTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static String write(double value, int decimals) {
+        ForecastJsonWriter writer = new ForecastJsonWriter(16);
+        writer.fixed(value, decimals);
+        return new String(writer.toByteArray(), UTF_8);
+    }
+
+    @Test
+    public void fixed_matchesUsFormatting() throws Exception {
+        double[] values = { 0, 0.5, 13.32f, -1.1f, -23.333f, 996.68f, 148.1f, 99.9951, 1e6 + 0.125 };
+        for (double value : values) {
+            assertEquals(String.format(Locale.US, "%.2f", value), write(value, 2));
+            assertEquals(String.format(Locale.US, "%.0f", value), write(value, 0));
+        }
+    }
+
+    @Test
+    public void fixed_ignoresDefaultLocale() throws Exception {
+        Locale saved = Locale.getDefault();
+        Locale.setDefault(Locale.GERMANY);
+        try {
+            assertEquals("12.50", write(12.5, 2));
+        } finally {
+            Locale.setDefault(saved);
+        }
+    }
+
+    @Test
+    public void string_escapesQuotesAndNonAscii() throws Exception {
+        ForecastJsonWriter writer = new ForecastJsonWriter(4);
+        writer.string("Sand, Dust").raw(',').string("say \"hi\"").raw(',').string("caf\u00e9");
+        assertEquals("\"Sand, Dust\",\"say \\\"hi\\\"\",\"caf\u00e9\"", new String(writer.toByteArray(), UTF_8));
+    }
+
+    @Test
+    public void number_writesNegativeAndZero() throws Exception {
+        ForecastJsonWriter writer = new ForecastJsonWriter(4);
+        writer.number(0).raw(',').number(-42).raw(',').number(1467000000L);
+        assertEquals("0,-42,1467000000", new String(writer.toByteArray(), UTF_8));
+    }
+}
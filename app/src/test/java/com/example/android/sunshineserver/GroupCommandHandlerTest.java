@@ -0,0 +1,247 @@
+package com.example.android.sunshineserver;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class GroupCommandHandlerTest {
+    private static final long NOW = 1467000000123L;
+
+    /**
+     * Settings in a map and a clock that never moves.
+     */
+    private static class FakePlatform implements ServerPlatform {
+        final Map<String, Integer> mValues = new HashMap<String, Integer>();
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return mValues.containsKey(key) ? mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return defValue;
+        }
+
+        @Override
+        public void registerListener(Listener listener) {
+        }
+
+        @Override
+        public void unregisterListener(Listener listener) {
+        }
+
+        @Override
+        public File getLogDirectory() {
+            return new File(System.getProperty("java.io.tmpdir"));
+        }
+
+        @Override
+        public boolean isLoggable(String tag, int priority) {
+            return false;
+        }
+
+        @Override
+        public void log(int priority, String tag, String message, Throwable tr) {
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return NOW;
+        }
+
+        @Override
+        public String formatDateTime(long millis) {
+            return Long.toString(millis);
+        }
+    }
+
+    private static GroupCommandHandler newHandler(int mode) {
+        FakePlatform platform = new FakePlatform();
+        platform.mValues.put(WeatherCommandHandler.PREF_SERVER_MODE, mode);
+        return newHandler(platform);
+    }
+
+    private static GroupCommandHandler newHandler(FakePlatform platform) {
+        ServerConfigMonitor config = new ServerConfigMonitor(platform);
+        RequestLog requestLog = new RequestLog(platform, platform);
+        return new GroupCommandHandler(platform, new WeatherCommandHandler(platform, config, requestLog),
+                config, requestLog);
+    }
+
+    private static HttpResponse get(HttpRequestHandler handler, String target) throws Exception {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        handler.handle(new BasicHttpRequest("GET", target), response, new BasicHttpContext());
+        return response;
+    }
+
+    private static HttpResponse get(GroupCommandHandler handler, String query) throws Exception {
+        return get((HttpRequestHandler) handler, "/data/2.5/group?" + query);
+    }
+
+    private static String body(HttpResponse response) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.getEntity().writeTo(out);
+        return out.toString("UTF-8");
+    }
+
+    private static int[] range(int from, int count) {
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = from + i;
+        }
+        return ids;
+    }
+
+    private static String idList(int[] ids) {
+        StringBuilder sb = new StringBuilder();
+        for (int id : ids) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(id);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return each city's forecast by id, in the order they appear in the body
+     */
+    private static Map<Integer, String> cities(String body, List<Integer> order) {
+        assertTrue(body.endsWith("]}]}"));
+        Map<Integer, String> cities = new HashMap<Integer, String>();
+        String[] parts = body.substring(0, body.length() - 2).split("\\{\"city\":\\{\"id\":");
+        for (int i = 1; i < parts.length; i++) {
+            String city = parts[i].endsWith(",") ? parts[i].substring(0, parts[i].length() - 1) : parts[i];
+            int id = Integer.parseInt(city.substring(0, city.indexOf(',')));
+            order.add(id);
+            cities.put(id, city);
+        }
+        return cities;
+    }
+
+    @Test
+    public void parseIds_rejectsEmptyAndNonNumericLists() throws Exception {
+        assertNull(GroupCommandHandler.parseIds(null));
+        assertNull(GroupCommandHandler.parseIds(""));
+        assertNull(GroupCommandHandler.parseIds(" "));
+        assertNull(GroupCommandHandler.parseIds("5375480,London"));
+        assertNull(GroupCommandHandler.parseIds("1,,2"));
+        assertTrue(Arrays.equals(new int[] { 1, 2, 3 }, GroupCommandHandler.parseIds("1, 2 ,3")));
+    }
+
+    @Test
+    public void handle_listsCitiesInRequestOrder() throws Exception {
+        GroupCommandHandler handler = newHandler(WeatherCommandHandler.SERVER_MODE_RANDOM);
+        int generators = Math.max(1, Runtime.getRuntime().availableProcessors());
+        int[] dayCounts = { 1, 7, GroupCommandHandler.SLICE_CITY_DAYS };
+        for (int days : dayCounts) {
+            int perSlice = GroupCommandHandler.citiesPerSlice(days);
+            int buffered = GroupCommandHandler.MAX_BUFFERED_CITY_DAYS / days;
+            // around the buffered limit, slice boundaries and a full round of generators
+            int[] counts = { 1, buffered, buffered + 1, perSlice * 2 - 1, perSlice * 2, perSlice * 2 + 1,
+                    perSlice * generators, perSlice * generators + 1, GroupCommandHandler.MAX_GROUP_IDS };
+            for (int count : counts) {
+                if (count < 1 || count > GroupCommandHandler.MAX_GROUP_IDS) continue;
+                // descending, so order can't come from sorting
+                int[] ids = new int[count];
+                for (int i = 0; i < count; i++) {
+                    ids[i] = 100000 - i;
+                }
+                HttpResponse response = get(handler, "id=" + idList(ids) + "&cnt=" + days);
+                assertEquals(200, response.getStatusLine().getStatusCode());
+                String body = body(response);
+                assertTrue(body.startsWith("{\"cod\":\"200\",\"cnt\":" + count + ","));
+                List<Integer> order = new ArrayList<Integer>();
+                cities(body, order);
+                assertEquals(count + " cities, " + days + " days", count, order.size());
+                for (int i = 0; i < count; i++) {
+                    assertEquals(ids[i], (int) order.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void handle_seededDaysDependOnlyOnSeedCityAndDay() throws Exception {
+        GroupCommandHandler handler = newHandler(WeatherCommandHandler.SERVER_MODE_RANDOM);
+        // wide enough to be rendered in parallel slices
+        int[] ids = range(1, 200);
+        int[] reversed = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            reversed[i] = ids[ids.length - 1 - i];
+        }
+        String first = body(get(handler, "id=" + idList(ids) + "&cnt=7&seed=42"));
+        assertEquals(first, body(get(handler, "id=" + idList(ids) + "&cnt=7&seed=42")));
+
+        Map<Integer, String> forward = cities(first, new ArrayList<Integer>());
+        Map<Integer, String> backward = cities(body(get(handler, "id=" + idList(reversed) + "&cnt=7&seed=42")),
+                new ArrayList<Integer>());
+        Map<Integer, String> alone = cities(body(get(handler, "id=150&cnt=7&seed=42")), new ArrayList<Integer>());
+        for (int id : ids) {
+            assertEquals(forward.get(id), backward.get(id));
+        }
+        assertEquals(forward.get(150), alone.get(150));
+
+        Map<Integer, String> otherSeed = cities(body(get(handler, "id=150&cnt=7&seed=43")), new ArrayList<Integer>());
+        assertFalse(forward.get(150).equals(otherSeed.get(150)));
+    }
+
+    @Test
+    public void handle_rejectsTooManyIds() throws Exception {
+        GroupCommandHandler handler = newHandler(WeatherCommandHandler.SERVER_MODE_RANDOM);
+        HttpResponse tooMany = get(handler, "id=" + idList(range(1, GroupCommandHandler.MAX_GROUP_IDS + 1)));
+        assertEquals(400, tooMany.getStatusLine().getStatusCode());
+        assertEquals(WeatherCommandHandler.getErrorResponse(400), body(tooMany));
+
+        HttpResponse most = get(handler, "id=" + idList(range(1, GroupCommandHandler.MAX_GROUP_IDS)) + "&cnt=1");
+        assertEquals(200, most.getStatusLine().getStatusCode());
+
+        assertEquals(400, get(handler, "id=1,,2").getStatusLine().getStatusCode());
+    }
+
+    @Test
+    public void errorMode_sendsTheErrorBodyEvenForCode200() throws Exception {
+        FakePlatform platform = new FakePlatform();
+        platform.mValues.put(WeatherCommandHandler.PREF_SERVER_MODE, WeatherCommandHandler.SERVER_MODE_ERROR);
+        platform.mValues.put(WeatherCommandHandler.PREF_SERVER_ERROR, 200);
+        GroupCommandHandler group = newHandler(platform);
+
+        HttpResponse forecast = get(new WeatherCommandHandler(platform, new ServerConfigMonitor(platform),
+                new RequestLog(platform, platform)), "/data/2.5/forecast/daily?q=94043&mode=json");
+        assertEquals(200, forecast.getStatusLine().getStatusCode());
+        assertEquals(WeatherCommandHandler.getErrorResponse(200), body(forecast));
+        HttpResponse cities = get(group, "id=1,2");
+        assertEquals(200, cities.getStatusLine().getStatusCode());
+        assertEquals(WeatherCommandHandler.getErrorResponse(200), body(cities));
+    }
+
+    @Test
+    public void handle_staticDaysStartAtMidnightLikeSingleForecasts() throws Exception {
+        GroupCommandHandler handler = newHandler(WeatherCommandHandler.SERVER_MODE_STATIC);
+        long midnight = WeatherCommandHandler.startOfDay(NOW) / 1000;
+        // buffered and streamed
+        for (int count : new int[] { 2, GroupCommandHandler.MAX_GROUP_IDS }) {
+            int[] ids = new int[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = i + 1;
+            }
+            String body = body(get(handler, "id=" + idList(ids) + "&cnt=2"));
+            assertTrue(body.contains("{\"dt\":" + midnight + ","));
+            assertTrue(body.contains("{\"dt\":" + (midnight + WeatherCommandHandler.DAY_IN_MILLIS / 1000) + ","));
+            assertFalse(body.contains("{\"dt\":" + NOW / 1000 + ","));
+        }
+    }
+}
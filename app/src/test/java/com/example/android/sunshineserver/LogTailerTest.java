@@ -0,0 +1,79 @@
+package com.example.android.sunshineserver;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LogTailerTest {
+    private final List<String> mReads = new ArrayList<String>();
+
+    private LogTailer tail(File file) {
+        return new LogTailer(file, new LogTailer.Listener() {
+            @Override
+            public void onLines(String text, boolean reset) {
+                mReads.add((reset ? "reset:" : "") + text);
+            }
+        });
+    }
+
+    private static void write(File file, String text, boolean append) throws Exception {
+        FileWriter writer = new FileWriter(file, append);
+        writer.write(text);
+        writer.close();
+    }
+
+    @Test
+    public void read_deliversOnlyNewCompleteLines() throws Exception {
+        File file = File.createTempFile("tailer", ".log");
+        LogTailer tailer = tail(file);
+        write(file, "one\ntw", false);
+        tailer.read();
+        write(file, "o\n", true);
+        tailer.read();
+        tailer.read();
+        assertEquals(2, mReads.size());
+        assertEquals("reset:one\n", mReads.get(0));
+        assertEquals("two\n", mReads.get(1));
+        tailer.stop();
+    }
+
+    @Test
+    public void read_finishesRotatedSegmentFirst() throws Exception {
+        File file = File.createTempFile("tailer", ".log");
+        File rotated = new File(file.getPath() + ".1");
+        LogTailer tailer = new LogTailer(file, rotated, LogTailer.TEXT, new LogTailer.Listener() {
+            @Override
+            public void onLines(String text, boolean reset) {
+                mReads.add((reset ? "reset:" : "") + text);
+            }
+        });
+        write(file, "one\n", false);
+        tailer.read();
+        write(file, "two\n", true);
+        assertTrue(file.renameTo(rotated));
+        write(file, "three\n", false);
+        tailer.read();
+        assertEquals("two\nthree\n", mReads.get(mReads.size() - 1));
+        tailer.stop();
+        rotated.delete();
+    }
+
+    @Test
+    public void requestReset_startsOverAfterTruncation() throws Exception {
+        File file = File.createTempFile("tailer", ".log");
+        LogTailer tailer = tail(file);
+        write(file, "one\ntwo\n", false);
+        tailer.read();
+        write(file, "a much longer line\n", false);
+        // stopped first so the reset is only picked up by the read below
+        tailer.stop();
+        tailer.requestReset();
+        tailer.read();
+        assertEquals("reset:a much longer line\n", mReads.get(mReads.size() - 1));
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.android.sunshineserver;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NetworkConditionsTest {
+    @Test
+    public void nextDelayMillis_staysWithinDistribution() throws Exception {
+        Random random = new Random(42);
+        NetworkConditions fixed = new NetworkConditions(NetworkConditions.DELAY_FIXED, 250, 100, 0, 0);
+        NetworkConditions uniform = new NetworkConditions(NetworkConditions.DELAY_UNIFORM, 250, 100, 0, 0);
+        NetworkConditions logNormal = new NetworkConditions(NetworkConditions.DELAY_LOG_NORMAL, 250, 0, 0, 0);
+        int belowMedian = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(250, fixed.nextDelayMillis(random));
+            long delay = uniform.nextDelayMillis(random);
+            assertTrue(delay >= 150 && delay <= 350);
+            delay = logNormal.nextDelayMillis(random);
+            assertTrue(delay >= 0 && delay <= NetworkConditions.MAX_DELAY_MILLIS);
+            if (delay < 250) belowMedian++;
+        }
+        assertTrue(belowMedian > 400 && belowMedian < 600);
+    }
+
+    @Test
+    public void nextDelayMillis_spikesAndCaps() throws Exception {
+        Random random = new Random(42);
+        NetworkConditions spiky = new NetworkConditions(NetworkConditions.DELAY_FIXED, 100, 0, 100, 0);
+        assertEquals(100 * NetworkConditions.SPIKE_FACTOR, spiky.nextDelayMillis(random));
+        NetworkConditions huge = new NetworkConditions(NetworkConditions.DELAY_FIXED, Integer.MAX_VALUE, 0, 0, 0);
+        assertEquals(NetworkConditions.MAX_DELAY_MILLIS, huge.nextDelayMillis(random));
+        assertTrue(NetworkConditions.NONE.isUnshaped());
+        assertEquals(0, NetworkConditions.NONE.nextDelayMillis(random));
+    }
+
+    @Test
+    public void bytesPerTick_splitsBandwidthIntoTicks() throws Exception {
+        assertEquals(0, NetworkShaper.bytesPerTick(0));
+        assertEquals(1, NetworkShaper.bytesPerTick(1));
+        assertEquals(3200, NetworkShaper.bytesPerTick(32000));
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.android.sunshineserver;
+
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QueryParamsTest {
+    private static QueryParams parse(String uri) {
+        return new QueryParams().parse(uri);
+    }
+
+    @Test
+    public void parse_findsKnownParameters() throws Exception {
+        QueryParams params = parse("/data/2.5/forecast/daily?q=94043&mode=json&units=metric&cnt=14&appid=abc&seed=-7");
+        assertEquals("94043", params.get(QueryParams.Q));
+        assertEquals("metric", params.get(QueryParams.UNITS));
+        assertEquals("abc", params.get(QueryParams.APPID));
+        assertEquals(14, params.getInt(QueryParams.CNT, 7));
+        assertEquals(Long.valueOf(-7), params.getLong(QueryParams.SEED));
+        assertFalse(params.has(QueryParams.LAT));
+        assertNull(params.get(QueryParams.BULK));
+    }
+
+    @Test
+    public void parse_firstOccurrenceWinsAndFragmentIsIgnored() throws Exception {
+        QueryParams params = parse("/daily?q=a&q=b&cnt=3#cnt=4");
+        assertEquals("a", params.get(QueryParams.Q));
+        assertEquals(3, params.getInt(QueryParams.CNT, 0));
+    }
+
+    @Test
+    public void get_decodesEscapesAndPlus() throws Exception {
+        QueryParams params = parse("/daily?q=Mountain+View%2C%20CA&units=caf%C3%A9&appid=100%&lat=");
+        assertEquals("Mountain View, CA", params.get(QueryParams.Q));
+        assertEquals("caf\u00e9", params.get(QueryParams.UNITS));
+        assertEquals("100%", params.get(QueryParams.APPID));
+        assertEquals("", params.get(QueryParams.LAT));
+    }
+
+    @Test
+    public void getLocation_joinsLatAndLon() throws Exception {
+        assertEquals("37.39,-122.08", parse("/daily?lat=37.39&lon=-122.08").getLocation());
+        assertEquals("94043", parse("/daily?lat=37.39&lon=-122.08&q=94043").getLocation());
+        assertEquals("", parse("/daily?lat=37.39").getLocation());
+        assertEquals("", parse("/daily").getLocation());
+    }
+
+    @Test
+    public void getInt_matchesParseIntOfTrimmedValue() throws Exception {
+        assertEquals(5, parse("/daily?cnt=+5+").getInt(QueryParams.CNT, 0));
+        assertEquals(5, parse("/daily?cnt=%205").getInt(QueryParams.CNT, 0));
+        assertEquals(-3, parse("/daily?cnt=-3").getInt(QueryParams.CNT, 0));
+        assertEquals(Integer.MAX_VALUE, parse("/daily?cnt=2147483647").getInt(QueryParams.CNT, 0));
+        assertEquals(Integer.MIN_VALUE, parse("/daily?cnt=-2147483648").getInt(QueryParams.CNT, 0));
+        assertEquals(9, parse("/daily?cnt=2147483648").getInt(QueryParams.CNT, 9));
+        assertEquals(9, parse("/daily?cnt=1x").getInt(QueryParams.CNT, 9));
+        assertEquals(9, parse("/daily?cnt=").getInt(QueryParams.CNT, 9));
+        assertEquals(9, parse("/daily?cnt=-").getInt(QueryParams.CNT, 9));
+    }
+
+    @Test
+    public void getLong_rejectsOutOfRange() throws Exception {
+        assertEquals(Long.valueOf(Long.MIN_VALUE), parse("/daily?seed=-9223372036854775808").getLong(QueryParams.SEED));
+        assertNull(parse("/daily?seed=9223372036854775808").getLong(QueryParams.SEED));
+        assertNull(parse("/daily?seed=+1+").getLong(QueryParams.SEED));
+    }
+
+    @Test
+    public void forContext_reusesOneHolderPerConnection() throws Exception {
+        HttpContext context = new BasicHttpContext();
+        QueryParams first = QueryParams.forContext(context).parse("/daily?q=a&cnt=2");
+        QueryParams second = QueryParams.forContext(context).parse("/daily?lat=1&lon=2");
+        assertSame(first, second);
+        assertFalse(second.has(QueryParams.Q));
+        assertFalse(second.has(QueryParams.CNT));
+        assertEquals("1,2", second.getLocation());
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.android.sunshineserver;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class RequestLogRecordTest {
+
+    private static RequestLogRecord roundTrip(long time, int mode, int status, int latencyMicros, String query) {
+        ByteBuffer buffer = ByteBuffer.allocate(RequestLogRecord.RECORD_SIZE);
+        RequestLogRecord.encode(buffer, time, mode, status, latencyMicros, query);
+        assertFalse(buffer.hasRemaining());
+        return RequestLogRecord.decode(buffer.array(), 0);
+    }
+
+    @Test
+    public void decode_returnsEncodedFields() throws Exception {
+        RequestLogRecord record = roundTrip(1467000000123L, WeatherCommandHandler.SERVER_MODE_STATIC, 404, 1234, "94043");
+        assertEquals(1467000000123L, record.mTime);
+        assertEquals(WeatherCommandHandler.SERVER_MODE_STATIC, record.mMode);
+        assertEquals(404, record.mStatus);
+        assertEquals(1234, record.mLatencyMicros);
+        assertEquals("94043".hashCode(), record.mQueryHash);
+        assertEquals("94043", record.getQuery());
+        assertFalse(record.isQueryTruncated());
+    }
+
+    @Test
+    public void encode_truncatesLongQueryOnCharacterBoundary() throws Exception {
+        // 39 ASCII bytes then a two-byte character that doesn't fit
+        String query = "012345678901234567890123456789012345678\u00e9tc";
+        RequestLogRecord record = roundTrip(0, 0, 200, 0, query);
+        assertEquals("012345678901234567890123456789012345678...", record.getQuery());
+        assertEquals(query.hashCode(), record.mQueryHash);
+        assertTrue(record.isQueryTruncated());
+    }
+
+    @Test
+    public void decode_rejectsOtherBytes() throws Exception {
+        assertNull(RequestLogRecord.decode(new byte[RequestLogRecord.RECORD_SIZE], 0));
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.android.sunshineserver;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ServerConfigMonitorTest {
+    /**
+     * Settings in a map, with at most one listener.
+     */
+    private static class MapConfigSource implements ConfigSource {
+        final Map<String, Object> mValues = new HashMap<String, Object>();
+        Listener mListener;
+
+        void put(String key, Object value) {
+            mValues.put(key, value);
+            if (mListener != null) {
+                mListener.onConfigChanged(this, key);
+            }
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return mValues.containsKey(key) ? (Integer) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return mValues.containsKey(key) ? (Boolean) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public void registerListener(Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void unregisterListener(Listener listener) {
+            if (mListener == listener) {
+                mListener = null;
+            }
+        }
+    }
+
+    @Test
+    public void get_followsTheSourceWhileStarted() throws Exception {
+        MapConfigSource source = new MapConfigSource();
+        ServerConfigMonitor monitor = new ServerConfigMonitor(source);
+        assertEquals(WeatherCommandHandler.SERVER_MODE_STATIC, monitor.get().getServerMode());
+        assertTrue(monitor.get().getNetworkConditions().isUnshaped());
+
+        monitor.start();
+        source.put(WeatherCommandHandler.PREF_SERVER_MODE, WeatherCommandHandler.SERVER_MODE_ERROR);
+        source.put(WeatherCommandHandler.PREF_NETWORK_SHAPING, true);
+        assertEquals(WeatherCommandHandler.SERVER_MODE_ERROR, monitor.get().getServerMode());
+        assertFalse(monitor.get().getNetworkConditions().isUnshaped());
+
+        monitor.stop();
+        source.put(WeatherCommandHandler.PREF_SERVER_MODE, WeatherCommandHandler.SERVER_MODE_RANDOM);
+        assertEquals(WeatherCommandHandler.SERVER_MODE_ERROR, monitor.get().getServerMode());
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.android.sunshineserver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ServerMetricsTest {
+
+    @Test
+    public void histogram_bucketsByUpperBound() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100000L);          // exactly 0.0001s, so the first bucket
+        histogram.record(100001L);
+        histogram.record(60L * 1000000000L); // above every bound
+        long[] buckets = histogram.getBucketCounts();
+        assertEquals(1, buckets[0]);
+        assertEquals(1, buckets[1]);
+        assertEquals(1, buckets[buckets.length - 1]);
+        assertEquals(100000L + 100001L + 60L * 1000000000L, histogram.getSumNanos());
+    }
+
+    @Test
+    public void writePrometheus_cumulativeBucketsAndNonZeroCounters() throws Exception {
+        ServerMetrics metrics = new ServerMetrics();
+        metrics.onConnectionOpened(2000000L);
+        metrics.onConnectionOpened(20000000L);
+        metrics.onConnectionClosed();
+        StringBuilder out = new StringBuilder();
+        metrics.writePrometheus(out);
+        String text = out.toString();
+        assertTrue(text.contains("sunshine_accept_queue_wait_seconds_bucket{le=\"0.001\"} 0\n"));
+        assertTrue(text.contains("sunshine_accept_queue_wait_seconds_bucket{le=\"0.0025\"} 1\n"));
+        assertTrue(text.contains("sunshine_accept_queue_wait_seconds_bucket{le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains("sunshine_accept_queue_wait_seconds_count 2\n"));
+        assertTrue(text.contains("sunshine_active_connections 1\n"));
+        assertFalse(text.contains("sunshine_requests_total{"));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forecast body generation, without any HTTP handling.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ForecastGenerationBenchmark {
+    private WeatherCommandHandler mHandler;
+    private ForecastJsonWriter mWriter;
+    private ForecastRandom mRandom;
+    private int mConditionIndex;
+    private int[] mConditions;
+
+    @Setup
+    public void setUp() {
+        JvmPlatform platform = JvmPlatform.createTemporary();
+        mHandler = new WeatherCommandHandler(platform, new ServerConfigMonitor(platform),
+                new RequestLog(platform, platform));
+        mWriter = new ForecastJsonWriter(8 * 1024);
+        mRandom = new ForecastRandom(42);
+        mConditions = WeatherConditions.getIds();
+    }
+
+    @Benchmark
+    public String generateStaticWeather() {
+        return mHandler.generateStaticWeather(System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public int generateDailyWeather() {
+        mWriter.reset();
+        mHandler.generateDailyWeather(mWriter, mRandom, System.currentTimeMillis() / 1000);
+        return mWriter.size();
+    }
+
+    @Benchmark
+    public String getStringForWeatherCondition() {
+        mConditionIndex = (mConditionIndex + 1) % mConditions.length;
+        return WeatherCommandHandler.getStringForWeatherCondition(mConditions[mConditionIndex]);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WeatherCommandHandler.handle() against in-memory requests and responses, including writing
+ * the response body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HandlerBenchmark {
+    @Param({ "0", "1", "2" })   // WeatherCommandHandler.SERVER_MODE_*
+    public int mode;
+
+    @Param({ "/data/2.5/forecast/daily?q=94043&mode=json&units=metric&cnt=14",
+            "/data/2.5/forecast/daily?lat=37.39&lon=-122.08" })
+    public String uri;
+
+    private WeatherCommandHandler mHandler;
+    private RequestLog mRequestLog;
+    private HttpContext mHttpContext;
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        JvmPlatform platform = JvmPlatform.createTemporary();
+        platform.put(WeatherCommandHandler.PREF_SERVER_MODE, mode);
+        ServerConfigMonitor config = new ServerConfigMonitor(platform);
+        mRequestLog = new RequestLog(platform, platform);
+        mRequestLog.start();
+        mHandler = new WeatherCommandHandler(platform, config, mRequestLog);
+        mHttpContext = new BasicHttpContext();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mRequestLog.stop();
+    }
+
+    @Benchmark
+    public HttpResponse handle() throws Exception {
+        BasicHttpRequest request = new BasicHttpRequest("GET", uri, HttpVersion.HTTP_1_1);
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        mHandler.handle(request, response, mHttpContext);
+        writeBody(response);
+        return response;
+    }
+
+    private static void writeBody(HttpResponse response) throws IOException {
+        if (response.getEntity() != null) {
+            response.getEntity().writeTo(DISCARD);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end requests to a running HttpServer over loopback.  Each benchmark thread keeps one
+ * keep-alive connection open, so run with -t to measure concurrency.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoopbackBenchmark {
+    private static final int PORT = 18088;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({ "0", "1" })    // HttpServer.ENGINE_*
+        public int engine;
+
+        @Param({ "0", "1" })    // WeatherCommandHandler.SERVER_MODE_RANDOM, SERVER_MODE_STATIC
+        public int mode;
+
+        private HttpServer mServer;
+
+        @Setup(Level.Trial)
+        public void start() throws InterruptedException {
+            JvmPlatform platform = JvmPlatform.createTemporary();
+            platform.put(WeatherCommandHandler.PREF_SERVER_MODE, mode);
+            HttpServer.sServerPort = PORT;
+            HttpServer.sServerEngine = engine;
+            HttpServer.sMaxRequestsPerConnection = Integer.MAX_VALUE;
+            mServer = new HttpServer(platform);
+            mServer.startServer();
+            // give the accept loop a moment to bind
+            Thread.sleep(200);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            mServer.stopServer();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private HttpTestClient mClient;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) {
+            mClient = new HttpTestClient("localhost", PORT);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            mClient.close();
+        }
+    }
+
+    @Benchmark
+    public int request(Client client) throws IOException {
+        return client.mClient.get("/data/2.5/forecast/daily?q=94043", null);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * A minimal HTTP/1.1 client for driving the server over a single keep-alive connection.  It
+ * reads and discards response bodies, whether delimited by Content-Length or chunked, and
+ * reconnects when the server closes the connection.
+ */
+public class HttpTestClient {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private final String mHost;
+    private final int mPort;
+    private final byte[] mDiscard = new byte[16 * 1024];
+    private final StringBuilder mLine = new StringBuilder(128);
+
+    private Socket mSocket;
+    private OutputStream mOut;
+    private InputStream mIn;
+    private long mBytesRead;
+
+    public HttpTestClient(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    private void connect() throws IOException {
+        mSocket = new Socket();
+        mSocket.setTcpNoDelay(true);
+        mSocket.setSoTimeout(30 * 1000);
+        mSocket.connect(new InetSocketAddress(mHost, mPort), 5 * 1000);
+        mOut = mSocket.getOutputStream();
+        mIn = new BufferedInputStream(mSocket.getInputStream(), 16 * 1024);
+    }
+
+    public void close() {
+        if (mSocket != null) {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                // nothing left to do with it
+            }
+            mSocket = null;
+        }
+    }
+
+    /**
+     * @return the total number of response body bytes read so far
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * Sends a GET and reads the whole response.
+     *
+     * @param pathAndQuery the request target, e.g. "/data/2.5/forecast/daily?q=94043"
+     * @param extraHeaders complete header lines, each ending in CRLF, or null
+     * @return the response status code
+     */
+    public int get(String pathAndQuery, String extraHeaders) throws IOException {
+        return request("GET", pathAndQuery, "HTTP/1.1", extraHeaders);
+    }
+
+    /**
+     * Sends a request with no body and reads the whole response.
+     *
+     * @param protocol     the protocol version, e.g. "HTTP/1.1"
+     * @param extraHeaders complete header lines, each ending in CRLF, or null; Host is always sent
+     * @return the response status code
+     */
+    public int request(String method, String target, String protocol, String extraHeaders) throws IOException {
+        if (mSocket == null) {
+            connect();
+        }
+        StringBuilder request = new StringBuilder(128);
+        request.append(method).append(' ').append(target).append(' ').append(protocol).append("\r\nHost: ")
+                .append(mHost).append("\r\n");
+        if (extraHeaders != null) {
+            request.append(extraHeaders);
+        }
+        request.append("\r\n");
+        try {
+            mOut.write(request.toString().getBytes(US_ASCII));
+            mOut.flush();
+            return readResponse("HEAD".equals(method));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private int readResponse(boolean head) throws IOException {
+        String statusLine = readLine();
+        if (statusLine == null) {
+            throw new IOException("Connection closed before the status line");
+        }
+        int status = Integer.parseInt(statusLine.split(" ")[1]);
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean close = false;
+        String line;
+        while ((line = readLine()) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                contentLength = Long.parseLong(value);
+            } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                chunked = "chunked".equalsIgnoreCase(value);
+            } else if ("Connection".equalsIgnoreCase(name)) {
+                close = "close".equalsIgnoreCase(value);
+            }
+        }
+        if (head || status == 204 || status == 304) {
+            // never has a body, whatever the headers say
+        } else if (chunked) {
+            long size;
+            while ((size = Long.parseLong(readLine().split(";")[0].trim(), 16)) > 0) {
+                skip(size);
+                readLine();
+            }
+            // trailers, if any, end with a blank line
+            while ((line = readLine()) != null && line.length() > 0) {
+            }
+        } else if (contentLength >= 0) {
+            skip(contentLength);
+        } else {
+            // delimited by the connection closing
+            while (mIn.read(mDiscard) >= 0) {
+            }
+            close = true;
+        }
+        if (close) {
+            close();
+        }
+        return status;
+    }
+
+    private void skip(long count) throws IOException {
+        while (count > 0) {
+            int n = mIn.read(mDiscard, 0, (int) Math.min(mDiscard.length, count));
+            if (n < 0) {
+                throw new IOException("Connection closed mid-body");
+            }
+            count -= n;
+            mBytesRead += n;
+        }
+    }
+
+    private String readLine() throws IOException {
+        mLine.setLength(0);
+        int c;
+        while ((c = mIn.read()) >= 0) {
+            if (c == '\n') {
+                return mLine.toString();
+            } else if (c != '\r') {
+                mLine.append((char) c);
+            }
+        }
+        return mLine.length() > 0 ? mLine.toString() : null;
+    }
+}
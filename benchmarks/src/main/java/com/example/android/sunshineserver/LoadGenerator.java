@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives HttpServer over loopback with a number of concurrent keep-alive clients and reports
+ * throughput, latency percentiles and status code counts.
+ *
+ * With --rate, clients issue requests on a fixed schedule and latency is measured from when each
+ * request was due to be sent, not from when it actually went out.  A server stall then shows up
+ * in the latency of every request that should have been sent during it, rather than being hidden
+ * by the clients slowing down (coordinated omission).  For the same reason every request due
+ * before the end of the run is still sent and recorded, however far behind the server has fallen,
+ * up to DRAIN_SECONDS past the end.  Without --rate, each client sends its next request as soon
+ * as the previous one completes, until the end of the run.
+ *
+ * Unless --host is given, an HttpServer is started in-process and every phase is run once per
+ * server mode.  Run through Gradle with:
+ *
+ *     ./gradlew :benchmarks:loadTest -PloadArgs="--clients=16 --rate=2000 --duration=30"
+ */
+public class LoadGenerator {
+    private static final String DAILY_WEATHER_PATH = "/data/2.5/forecast/daily?";
+
+    // a mix of city searches and coordinate lookups
+    private static final String[] QUERIES = {
+            "q=94043&mode=json&units=metric&cnt=14",
+            "q=London,uk&mode=json&units=metric&cnt=14",
+            "lat=37.386051&lon=-122.083847&mode=json&units=metric&cnt=14",
+            "q=Mountain%20View&mode=json&units=imperial&cnt=14",
+            "lat=51.5085&lon=-0.1257&mode=json&units=metric&cnt=7",
+            "q=Paris,fr&mode=json&units=metric&cnt=14",
+    };
+
+    private static final String[] MODE_NAMES = { "random", "static", "error" };
+
+    // how long fixed-rate clients keep sending requests that fell due before the end of the run
+    private static final int DRAIN_SECONDS = 30;
+
+    // latencies are recorded in microseconds, up to an hour
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+
+    static class Options {
+        String host = null;
+        int port = 18088;
+        int clients = 8;
+        double rate = 0;
+        int warmupSeconds = 5;
+        int durationSeconds = 30;
+        int engine = HttpServer.ENGINE_BLOCKING;
+        int[] modes = { WeatherCommandHandler.SERVER_MODE_RANDOM, WeatherCommandHandler.SERVER_MODE_STATIC,
+                WeatherCommandHandler.SERVER_MODE_ERROR };
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int equals = arg.indexOf('=');
+                if (!arg.startsWith("--") || equals < 0) {
+                    throw new IllegalArgumentException("Expected --name=value, got " + arg);
+                }
+                String name = arg.substring(2, equals);
+                String value = arg.substring(equals + 1);
+                if ("host".equals(name)) {
+                    options.host = value;
+                } else if ("port".equals(name)) {
+                    options.port = Integer.parseInt(value);
+                } else if ("clients".equals(name)) {
+                    options.clients = Integer.parseInt(value);
+                } else if ("rate".equals(name)) {
+                    options.rate = Double.parseDouble(value);
+                } else if ("warmup".equals(name)) {
+                    options.warmupSeconds = Integer.parseInt(value);
+                } else if ("duration".equals(name)) {
+                    options.durationSeconds = Integer.parseInt(value);
+                } else if ("engine".equals(name)) {
+                    options.engine = "nio".equals(value) ? HttpServer.ENGINE_NIO : HttpServer.ENGINE_BLOCKING;
+                } else if ("modes".equals(name)) {
+                    String[] modes = value.split(",");
+                    options.modes = new int[modes.length];
+                    for (int i = 0; i < modes.length; i++) {
+                        options.modes[i] = Integer.parseInt(modes[i]);
+                    }
+                } else {
+                    throw new IllegalArgumentException("Unknown option --" + name);
+                }
+            }
+            return options;
+        }
+    }
+
+    /**
+     * One client connection and everything it measured.
+     */
+    private static class Worker extends Thread {
+        private final HttpTestClient mClient;
+        private final long mIntervalNanos;
+        private final long mMeasureStart;
+        private final long mEnd;
+        private final long mDeadline;
+        private final int mIndex;
+        private final int mClients;
+        private final CountDownLatch mDone;
+
+        final Histogram mHistogram = new Histogram(HIGHEST_LATENCY_MICROS, 3);
+        final long[] mStatusCounts = new long[600];
+        long mErrors;
+        // requests due before the end that were still unsent at the deadline
+        long mMissed;
+        long mBodyBytesAtMeasureStart = -1;
+
+        Worker(int index, Options options, long measureStart, long end, CountDownLatch done) {
+            super("LoadGenerator-client-" + index);
+            mClient = new HttpTestClient(options.host == null ? "localhost" : options.host, options.port);
+            mIntervalNanos = options.rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * options.clients / options.rate) : 0;
+            mMeasureStart = measureStart;
+            mEnd = end;
+            mDeadline = end + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+            mIndex = index;
+            mClients = options.clients;
+            mDone = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // spread fixed-rate clients across the interval instead of firing together
+                long next = System.nanoTime() + mIntervalNanos * mIndex / mClients;
+                int query = mIndex % QUERIES.length;
+                while (true) {
+                    long start = System.nanoTime();
+                    if (mIntervalNanos > 0) {
+                        // stop on the schedule, not the clock: the requests a slow server has
+                        // held back are the ones with the worst latencies
+                        if (next >= mEnd) {
+                            break;
+                        }
+                        if (start >= mDeadline) {
+                            mMissed = (mEnd - next + mIntervalNanos - 1) / mIntervalNanos;
+                            break;
+                        }
+                        long wait = next - start;
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                        // measure from when the request was due, not when it was sent
+                        start = next;
+                        next += mIntervalNanos;
+                    } else if (start >= mEnd) {
+                        break;
+                    }
+                    int status;
+                    try {
+                        status = mClient.get(DAILY_WEATHER_PATH + QUERIES[query], null);
+                    } catch (IOException e) {
+                        status = -1;
+                    }
+                    query = (query + 1) % QUERIES.length;
+                    long end = System.nanoTime();
+                    if (start < mMeasureStart) {
+                        continue;
+                    }
+                    if (mBodyBytesAtMeasureStart < 0) {
+                        mBodyBytesAtMeasureStart = mClient.getBytesRead();
+                    }
+                    mHistogram.recordValue(Math.min(HIGHEST_LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros(end - start)));
+                    if (status < 0) {
+                        mErrors++;
+                    } else if (status < mStatusCounts.length) {
+                        mStatusCounts[status]++;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopped early
+            } finally {
+                mClient.close();
+                mDone.countDown();
+            }
+        }
+
+        long getMeasuredBodyBytes() {
+            return mBodyBytesAtMeasureStart < 0 ? 0 : mClient.getBytesRead() - mBodyBytesAtMeasureStart;
+        }
+    }
+
+    private static void runPhase(String label, Options options) throws InterruptedException {
+        long now = System.nanoTime();
+        long measureStart = now + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        CountDownLatch done = new CountDownLatch(options.clients);
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < options.clients; i++) {
+            Worker worker = new Worker(i, options, measureStart, end, done);
+            workers.add(worker);
+            worker.start();
+        }
+        done.await();
+
+        Histogram total = new Histogram(HIGHEST_LATENCY_MICROS, 3);
+        long[] statusCounts = new long[600];
+        long errors = 0;
+        long missed = 0;
+        long bytes = 0;
+        for (Worker worker : workers) {
+            total.add(worker.mHistogram);
+            for (int i = 0; i < statusCounts.length; i++) {
+                statusCounts[i] += worker.mStatusCounts[i];
+            }
+            errors += worker.mErrors;
+            missed += worker.mMissed;
+            bytes += worker.getMeasuredBodyBytes();
+        }
+        report(label, options, total, statusCounts, errors, missed, bytes);
+    }
+
+    private static void report(String label, Options options, Histogram latencies, long[] statusCounts,
+                               long errors, long missed, long bytes) {
+        double seconds = options.durationSeconds;
+        System.out.println(String.format(Locale.US, "== %s: %d clients, %s, %ds ==", label, options.clients,
+                options.rate > 0 ? String.format(Locale.US, "%.0f req/s offered", options.rate) : "closed loop",
+                options.durationSeconds));
+        System.out.println(String.format(Locale.US, "requests   %d (%.1f req/s, %.1f KiB/s of body)",
+                latencies.getTotalCount(), latencies.getTotalCount() / seconds, bytes / 1024.0 / seconds));
+        System.out.println(String.format(Locale.US, "latency ms mean %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+                latencies.getMean() / 1000.0,
+                latencies.getValueAtPercentile(50) / 1000.0,
+                latencies.getValueAtPercentile(90) / 1000.0,
+                latencies.getValueAtPercentile(99) / 1000.0,
+                latencies.getValueAtPercentile(99.9) / 1000.0,
+                latencies.getMaxValue() / 1000.0));
+        StringBuilder codes = new StringBuilder("status    ");
+        for (int i = 0; i < statusCounts.length; i++) {
+            if (statusCounts[i] > 0) {
+                codes.append(' ').append(i).append(": ").append(statusCounts[i]);
+            }
+        }
+        if (errors > 0) {
+            codes.append("  I/O errors: ").append(errors);
+        }
+        if (missed > 0) {
+            codes.append("  never sent: ").append(missed);
+        }
+        System.out.println(codes);
+        System.out.println();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        if (options.host != null) {
+            runPhase(options.host + ":" + options.port, options);
+            return;
+        }
+
+        JvmPlatform platform = JvmPlatform.createTemporary();
+        HttpServer.sServerPort = options.port;
+        HttpServer.sServerEngine = options.engine;
+        HttpServer server = new HttpServer(platform);
+        server.startServer();
+        try {
+            // give the accept loop a moment to bind
+            Thread.sleep(200);
+            for (int mode : options.modes) {
+                platform.put(WeatherCommandHandler.PREF_SERVER_MODE, mode);
+                runPhase((options.engine == HttpServer.ENGINE_NIO ? "nio" : "blocking") + " engine, " +
+                        MODE_NAMES[mode] + " mode", options);
+            }
+        } finally {
+            server.stopServer();
+        }
+    }
+}
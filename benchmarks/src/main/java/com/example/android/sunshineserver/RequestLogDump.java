@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Prints binary request log segments (RequestLog.FORMAT_BINARY) as tab-separated text: time,
+ * mode, status, latency in milliseconds, query hash and query.  Pull the logs off a device with
+ *
+ *     adb shell run-as com.example.android.sunshineserver cat files/WeatherLog.bin > WeatherLog.bin
+ *
+ * and pass segment files in any order, or the active segment to also read its rotated
+ * segments, oldest first:
+ *
+ *     ./gradlew :benchmarks:dumpLog -PlogFiles=WeatherLog.bin
+ */
+public class RequestLogDump {
+    private static final String[] MODE_NAMES = { "random", "static", "error" };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: RequestLogDump <WeatherLog.bin | segment>...");
+            System.exit(2);
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        for (String arg : args) {
+            for (File file : segmentsOf(new File(arg))) {
+                dump(file, format);
+            }
+        }
+    }
+
+    /**
+     * @return the file itself, preceded by its rotated segments if it is an active segment
+     */
+    private static List<File> segmentsOf(File file) {
+        List<File> segments = new ArrayList<File>();
+        int count = 0;
+        while (RequestLog.getSegmentFile(file, count + 1).exists()) {
+            count++;
+        }
+        for (int i = count; i >= 1; i--) {
+            segments.add(RequestLog.getSegmentFile(file, i));
+        }
+        segments.add(file);
+        return segments;
+    }
+
+    private static void dump(File file, SimpleDateFormat format) throws IOException {
+        byte[] record = new byte[RequestLogRecord.RECORD_SIZE];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            long offset = 0;
+            while (true) {
+                try {
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    // a partly written record at the end is ignored
+                    break;
+                }
+                print(file, offset, RequestLogRecord.decode(record, 0), format);
+                offset += record.length;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void print(File file, long offset, RequestLogRecord record, SimpleDateFormat format) {
+        if (record == null) {
+            System.err.println(file + ": not a request log record at offset " + offset);
+        } else if (record.mMode == RequestLogRecord.MODE_DROPPED) {
+            System.out.println(format.format(new Date(record.mTime)) + "\tdropped\t" + record.mLatencyMicros);
+        } else {
+            String mode = record.mMode < MODE_NAMES.length ? MODE_NAMES[record.mMode] : Integer.toString(record.mMode);
+            System.out.println(String.format(Locale.US, "%s\t%s\t%d\t%.1f\t%08x\t%s",
+                    format.format(new Date(record.mTime)), mode, record.mStatus, record.mLatencyMicros / 1000.0,
+                    record.mQueryHash, record.getQuery()));
+        }
+    }
+}
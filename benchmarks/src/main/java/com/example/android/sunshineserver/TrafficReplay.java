@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sends the traffic recorded by a TrafficCapture file to HttpServer again and reports
+ * throughput, latency percentiles and status code counts, like LoadGenerator.  Each captured
+ * connection is replayed on a connection of its own, so the server sees the same mix of
+ * keep-alive sessions and the same concurrency as when the traffic was recorded.
+ *
+ * With --speed=N (1 by default), every request is sent at its captured arrival time divided by
+ * N, and latency is measured from when it was due, so a server that falls behind shows up in the
+ * latency of everything queued behind it.  The report also shows how far sends lagged behind the
+ * schedule; lag close to the latency means the replay, not the server, was the bottleneck.  With
+ * --speed=max, each connection sends its requests back to back, with as many connections open at
+ * once as were ever open during the capture, or --max-connections.
+ *
+ * Requests are sent with their captured method, target, protocol and headers, except Host and
+ * body framing headers; bodies were not captured and are never sent.
+ *
+ * Unless --host is given, an HttpServer is started in-process.  Run through Gradle with:
+ *
+ *     ./gradlew :benchmarks:replay -PreplayArgs="--file=logs/WeatherTraffic-1467000000000.cap --speed=10"
+ */
+public class TrafficReplay {
+    // latencies are recorded in microseconds, up to an hour
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+
+    // captured headers that describe the original connection or body rather than the request
+    private static final String[] SKIPPED_HEADERS = { "Host", "Content-Length", "Transfer-Encoding" };
+
+    static class Options {
+        File file = null;
+        String host = null;
+        int port = 18088;
+        int engine = HttpServer.ENGINE_BLOCKING;
+        double speed = 1;           // 0 for as fast as possible
+        int maxConnections = 0;     // 0 for the capture's peak
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int equals = arg.indexOf('=');
+                if (!arg.startsWith("--") || equals < 0) {
+                    throw new IllegalArgumentException("Expected --name=value, got " + arg);
+                }
+                String name = arg.substring(2, equals);
+                String value = arg.substring(equals + 1);
+                if ("file".equals(name)) {
+                    options.file = new File(value);
+                } else if ("host".equals(name)) {
+                    options.host = value;
+                } else if ("port".equals(name)) {
+                    options.port = Integer.parseInt(value);
+                } else if ("engine".equals(name)) {
+                    options.engine = "nio".equals(value) ? HttpServer.ENGINE_NIO : HttpServer.ENGINE_BLOCKING;
+                } else if ("speed".equals(name)) {
+                    options.speed = "max".equals(value) ? 0 : Double.parseDouble(value.replace("x", ""));
+                    if (options.speed < 0) {
+                        throw new IllegalArgumentException("--speed must be positive or max");
+                    }
+                } else if ("max-connections".equals(name)) {
+                    options.maxConnections = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option --" + name);
+                }
+            }
+            if (options.file == null) {
+                throw new IllegalArgumentException("--file is required");
+            }
+            return options;
+        }
+    }
+
+    /**
+     * The requests one captured connection carried, in the order they arrived.
+     */
+    private static class Session {
+        final List<CapturedRequest> mRequests = new ArrayList<CapturedRequest>();
+        final List<String> mHeaders = new ArrayList<String>();
+
+        long getFirstMicros() {
+            return mRequests.get(0).mTimeMicros;
+        }
+
+        long getLastMicros() {
+            return mRequests.get(mRequests.size() - 1).mTimeMicros;
+        }
+    }
+
+    /**
+     * Everything measured across all connections.
+     */
+    private static class Results {
+        private final Histogram mLatencies = new Histogram(HIGHEST_LATENCY_MICROS, 3);
+        private final Histogram mLag = new Histogram(HIGHEST_LATENCY_MICROS, 3);
+        final AtomicLongArray mStatusCounts = new AtomicLongArray(600);
+        final AtomicLong mErrors = new AtomicLong();
+        final AtomicLong mBodyBytes = new AtomicLong();
+
+        synchronized void record(int status, long latencyNanos, long lagNanos) {
+            mLatencies.recordValue(Math.min(HIGHEST_LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+            mLag.recordValue(Math.min(HIGHEST_LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros(Math.max(0, lagNanos))));
+            if (status < 0) {
+                mErrors.incrementAndGet();
+            } else if (status < mStatusCounts.length()) {
+                mStatusCounts.incrementAndGet(status);
+            }
+        }
+    }
+
+    /**
+     * Replays sessions on one connection at a time: the session it was given, or with --speed=max,
+     * sessions taken from a shared queue until it is empty.
+     */
+    private static class Replayer extends Thread {
+        private final Options mOptions;
+        private final Session mSession;
+        private final ConcurrentLinkedQueue<Session> mQueue;
+        private final long mStartNanos;
+        private final Results mResults;
+        private final CountDownLatch mDone;
+
+        Replayer(String name, Options options, Session session, ConcurrentLinkedQueue<Session> queue,
+                 long startNanos, Results results, CountDownLatch done) {
+            super(name);
+            mOptions = options;
+            mSession = session;
+            mQueue = queue;
+            mStartNanos = startNanos;
+            mResults = results;
+            mDone = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (mSession != null) {
+                    replay(mSession);
+                } else {
+                    Session session;
+                    while ((session = mQueue.poll()) != null) {
+                        replay(session);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopped early
+            } finally {
+                mDone.countDown();
+            }
+        }
+
+        private void replay(Session session) throws InterruptedException {
+            HttpTestClient client = new HttpTestClient(mOptions.host == null ? "localhost" : mOptions.host,
+                    mOptions.port);
+            try {
+                for (int i = 0; i < session.mRequests.size(); i++) {
+                    CapturedRequest request = session.mRequests.get(i);
+                    long start = System.nanoTime();
+                    long due = start;
+                    if (mOptions.speed > 0) {
+                        due = mStartNanos + (long) (TimeUnit.MICROSECONDS.toNanos(request.mTimeMicros) / mOptions.speed);
+                        if (due > start) {
+                            TimeUnit.NANOSECONDS.sleep(due - start);
+                            start = System.nanoTime();
+                        }
+                    }
+                    int status;
+                    try {
+                        status = client.request(request.mMethod, request.mUri, request.mProtocol,
+                                session.mHeaders.get(i));
+                    } catch (IOException e) {
+                        status = -1;
+                    }
+                    // measure from when the request was due, not when it was sent
+                    mResults.record(status, System.nanoTime() - due, start - due);
+                }
+            } finally {
+                mResults.mBodyBytes.addAndGet(client.getBytesRead());
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * @return every connection in the capture, in the order each first sent a request
+     */
+    static List<Session> load(File file) throws IOException {
+        List<CapturedRequest> requests = new ArrayList<CapturedRequest>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            CapturedRequest.Decoder decoder = new CapturedRequest.Decoder(in);
+            CapturedRequest request;
+            while ((request = decoder.read()) != null) {
+                requests.add(request);
+            }
+        } finally {
+            in.close();
+        }
+        // the writer may have queued concurrent arrivals slightly out of order; the sort is stable
+        Collections.sort(requests, new Comparator<CapturedRequest>() {
+            @Override
+            public int compare(CapturedRequest a, CapturedRequest b) {
+                return a.mTimeMicros < b.mTimeMicros ? -1 : (a.mTimeMicros == b.mTimeMicros ? 0 : 1);
+            }
+        });
+        LinkedHashMap<Long, Session> sessions = new LinkedHashMap<Long, Session>();
+        for (CapturedRequest request : requests) {
+            Session session = sessions.get(request.mConnection);
+            if (session == null) {
+                session = new Session();
+                sessions.put(request.mConnection, session);
+            }
+            session.mRequests.add(request);
+            session.mHeaders.add(formatHeaders(request.mHeaders));
+        }
+        return new ArrayList<Session>(sessions.values());
+    }
+
+    private static String formatHeaders(String[] headers) {
+        StringBuilder sb = new StringBuilder(64);
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            boolean skipped = false;
+            for (String name : SKIPPED_HEADERS) {
+                skipped |= name.equalsIgnoreCase(headers[i]);
+            }
+            if (!skipped) {
+                sb.append(headers[i]).append(": ").append(headers[i + 1]).append("\r\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the most connections that were open at once, counting each from its first request
+     * to its last
+     */
+    static int peakConnections(List<Session> sessions) {
+        long[] opens = new long[sessions.size()];
+        long[] closes = new long[sessions.size()];
+        for (int i = 0; i < sessions.size(); i++) {
+            opens[i] = sessions.get(i).getFirstMicros();
+            closes[i] = sessions.get(i).getLastMicros();
+        }
+        Arrays.sort(opens);
+        Arrays.sort(closes);
+        int open = 0;
+        int peak = 0;
+        int c = 0;
+        for (long time : opens) {
+            // a connection whose last request came before this one's first has finished
+            while (closes[c] < time) {
+                open--;
+                c++;
+            }
+            open++;
+            peak = Math.max(peak, open);
+        }
+        return peak;
+    }
+
+    private static void replay(Options options, List<Session> sessions) throws InterruptedException {
+        Results results = new Results();
+        int peak = peakConnections(sessions);
+        long startNanos = System.nanoTime();
+        CountDownLatch done;
+        if (options.speed > 0) {
+            done = new CountDownLatch(sessions.size());
+            for (int i = 0; i < sessions.size(); i++) {
+                Session session = sessions.get(i);
+                // start each connection's thread when its first request is due
+                long wait = startNanos + (long) (TimeUnit.MICROSECONDS.toNanos(session.getFirstMicros()) / options.speed)
+                        - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                new Replayer("TrafficReplay-connection-" + i, options, session, null, startNanos, results, done).start();
+            }
+        } else {
+            int connections = options.maxConnections > 0 ? options.maxConnections : peak;
+            ConcurrentLinkedQueue<Session> queue = new ConcurrentLinkedQueue<Session>(sessions);
+            done = new CountDownLatch(connections);
+            for (int i = 0; i < connections; i++) {
+                new Replayer("TrafficReplay-connection-" + i, options, null, queue, startNanos, results, done).start();
+            }
+        }
+        done.await();
+        long elapsedNanos = System.nanoTime() - startNanos;
+        report(options, sessions, peak, results, elapsedNanos);
+    }
+
+    private static void report(Options options, List<Session> sessions, int peak, Results results, long elapsedNanos) {
+        long captured = 0;
+        long capturedMicros = 0;
+        for (Session session : sessions) {
+            captured += session.mRequests.size();
+            capturedMicros = Math.max(capturedMicros, session.getLastMicros());
+        }
+        double seconds = elapsedNanos / 1e9;
+        Histogram latencies = results.mLatencies;
+        Histogram lag = results.mLag;
+        System.out.println(String.format(Locale.US, "== %s: %d requests on %d connections (peak %d), %.1fs captured, %s ==",
+                options.file.getName(), captured, sessions.size(), peak, capturedMicros / 1e6,
+                options.speed > 0 ? String.format(Locale.US, "%sx speed", options.speed) : "max speed"));
+        System.out.println(String.format(Locale.US, "requests   %d in %.1fs (%.1f req/s, %.1f KiB/s of body)",
+                latencies.getTotalCount(), seconds, latencies.getTotalCount() / seconds,
+                results.mBodyBytes.get() / 1024.0 / seconds));
+        System.out.println(String.format(Locale.US, "latency ms mean %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+                latencies.getMean() / 1000.0,
+                latencies.getValueAtPercentile(50) / 1000.0,
+                latencies.getValueAtPercentile(90) / 1000.0,
+                latencies.getValueAtPercentile(99) / 1000.0,
+                latencies.getValueAtPercentile(99.9) / 1000.0,
+                latencies.getMaxValue() / 1000.0));
+        if (options.speed > 0) {
+            System.out.println(String.format(Locale.US, "send lag   p50 %.3f  p99 %.3f  max %.3f ms behind schedule",
+                    lag.getValueAtPercentile(50) / 1000.0,
+                    lag.getValueAtPercentile(99) / 1000.0,
+                    lag.getMaxValue() / 1000.0));
+        }
+        StringBuilder codes = new StringBuilder("status    ");
+        for (int i = 0; i < results.mStatusCounts.length(); i++) {
+            if (results.mStatusCounts.get(i) > 0) {
+                codes.append(' ').append(i).append(": ").append(results.mStatusCounts.get(i));
+            }
+        }
+        if (results.mErrors.get() > 0) {
+            codes.append("  I/O errors: ").append(results.mErrors.get());
+        }
+        System.out.println(codes);
+        System.out.println();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        List<Session> sessions = load(options.file);
+        if (sessions.isEmpty()) {
+            System.out.println(options.file + " holds no requests");
+            return;
+        }
+        if (options.host != null) {
+            replay(options, sessions);
+            return;
+        }
+
+        HttpServer.sServerPort = options.port;
+        HttpServer.sServerEngine = options.engine;
+        HttpServer server = new HttpServer(JvmPlatform.createTemporary());
+        server.startServer();
+        try {
+            // give the accept loop a moment to bind
+            Thread.sleep(200);
+            replay(options, sessions);
+        } finally {
+            server.stopServer();
+        }
+    }
+}
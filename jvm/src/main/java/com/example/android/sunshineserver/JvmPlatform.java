@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The server's platform on a plain JVM: settings are held in memory, loaded from command line
+ * options or a properties file and changeable while the server runs, the request log is written
+ * to a directory of the caller's choosing, and diagnostics go to stderr.
+ */
+public class JvmPlatform implements ServerPlatform {
+    private final File mLogDirectory;
+    private final Map<String, String> mSettings = new ConcurrentHashMap<String, String>();
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+    private volatile int mMinPriority = INFO;
+
+    private static final ThreadLocal<DateFormat> sDateTimes = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT);
+        }
+    };
+
+    /**
+     * @param logDirectory where the request log is written; created if it doesn't exist
+     */
+    public JvmPlatform(File logDirectory) {
+        mLogDirectory = logDirectory;
+    }
+
+    /**
+     * A platform that logs to a temporary directory, deleted when the JVM exits, for tests and
+     * benchmarks.
+     */
+    public static JvmPlatform createTemporary() {
+        File directory;
+        try {
+            directory = File.createTempFile("sunshine", "logs");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        directory.delete();
+        directory.mkdirs();
+        directory.deleteOnExit();
+        return new JvmPlatform(directory);
+    }
+
+    /**
+     * Changes a setting and tells the listeners, as ServerControl does on a device.
+     */
+    public void put(String key, int value) {
+        put(key, Integer.toString(value));
+    }
+
+    public void put(String key, boolean value) {
+        put(key, Boolean.toString(value));
+    }
+
+    private void put(String key, String value) {
+        mSettings.put(key, value);
+        for (Listener listener : mListeners) {
+            listener.onConfigChanged(this, key);
+        }
+    }
+
+    /**
+     * Sets every property as a setting, with the WeatherCommandHandler.PREF_* names as keys.
+     */
+    public void putAll(Properties properties) {
+        for (String key : properties.stringPropertyNames()) {
+            put(key, properties.getProperty(key).trim());
+        }
+    }
+
+    /**
+     * @param priority the lowest LogSink priority written to stderr
+     */
+    public void setMinPriority(int priority) {
+        mMinPriority = priority;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        String value = mSettings.get(key);
+        if (value == null) {
+            return defValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            log(WARN, JvmPlatform.class.getSimpleName(), "Ignoring " + key + "=" + value + ", not a number", null);
+            return defValue;
+        }
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        String value = mSettings.get(key);
+        return value == null ? defValue : Boolean.parseBoolean(value);
+    }
+
+    @Override
+    public void registerListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    @Override
+    public void unregisterListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    @Override
+    public File getLogDirectory() {
+        if (!mLogDirectory.isDirectory()) {
+            mLogDirectory.mkdirs();
+        }
+        return mLogDirectory;
+    }
+
+    @Override
+    public boolean isLoggable(String tag, int priority) {
+        return priority >= mMinPriority;
+    }
+
+    @Override
+    public void log(int priority, String tag, String message, Throwable tr) {
+        if (!isLoggable(tag, priority)) {
+            return;
+        }
+        System.err.println(tag + ": " + message);
+        if (tr != null) {
+            tr.printStackTrace();
+        }
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public String formatDateTime(long millis) {
+        return sDateTimes.get().format(new Date(millis));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshineserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs the weather server on a plain JVM, with no Android device or emulator, until the process
+ * is stopped.  Options are given as --name=value:
+ *
+ *     --port=8088              the port to listen on
+ *     --engine=blocking|nio    HttpServer.ENGINE_BLOCKING or ENGINE_NIO; network shaping in
+ *                              --config always runs on the NIO engine
+ *     --workers=N              worker threads for the blocking engine
+ *     --virtual-threads        run each blocking engine connection on its own virtual thread
+ *                              (Java 21 and later) instead of the worker pool
+ *     --trace-pinned=short|full
+ *                              print a stack trace whenever a virtual thread blocks while
+ *                              pinned, as -Djdk.tracePinnedThreads does
+ *     --event-loops=N          selector threads for the NIO engine
+ *     --max-concurrent=N       requests in flight before new ones are shed with 503
+ *     --mode=random|static|error
+ *     --error=N                the status code returned in error mode
+ *     --config=FILE            a properties file of WeatherCommandHandler.PREF_* settings
+ *     --log-dir=DIR            where the request log is written, "logs" by default
+ *     --log-format=text|binary
+ *     --capture                record every request to a WeatherTraffic-*.cap file in the log
+ *                              directory, for TrafficReplay
+ *     --verbose                log every connection to stderr
+ *
+ * Run through Gradle with:
+ *
+ *     ./gradlew :jvm:run -PserverArgs="--port=8088 --engine=nio"
+ */
+public class Main {
+    static private final String LOG_TAG = Main.class.getSimpleName();
+
+    private static final String[] MODE_NAMES = { "random", "static", "error" };
+
+    static class Options {
+        File logDirectory = new File("logs");
+        File config = null;
+        int mode = -1;
+        int errorCode = -1;
+        boolean verbose = false;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                if ("--verbose".equals(arg)) {
+                    options.verbose = true;
+                    continue;
+                }
+                if ("--capture".equals(arg)) {
+                    HttpServer.sCaptureTraffic = true;
+                    continue;
+                }
+                if ("--virtual-threads".equals(arg)) {
+                    HttpServer.sWorkerMode = HttpServer.WORKERS_VIRTUAL_THREADS;
+                    continue;
+                }
+                int equals = arg.indexOf('=');
+                if (!arg.startsWith("--") || equals < 0) {
+                    throw new IllegalArgumentException("Expected --name=value, got " + arg);
+                }
+                String name = arg.substring(2, equals);
+                String value = arg.substring(equals + 1);
+                if ("port".equals(name)) {
+                    HttpServer.sServerPort = Integer.parseInt(value);
+                } else if ("engine".equals(name)) {
+                    HttpServer.sServerEngine = "nio".equals(value) ? HttpServer.ENGINE_NIO : HttpServer.ENGINE_BLOCKING;
+                } else if ("workers".equals(name)) {
+                    HttpServer.sWorkerThreads = Integer.parseInt(value);
+                } else if ("trace-pinned".equals(name)) {
+                    if (!"short".equals(value) && !"full".equals(value)) {
+                        throw new IllegalArgumentException("Expected --trace-pinned=short or full, got " + value);
+                    }
+                    // before the server creates its first virtual thread
+                    VirtualThreads.tracePinnedThreads(value);
+                } else if ("event-loops".equals(name)) {
+                    HttpServer.sEventLoopThreads = Integer.parseInt(value);
+                } else if ("max-concurrent".equals(name)) {
+                    HttpServer.sMaxConcurrentRequests = Integer.parseInt(value);
+                } else if ("mode".equals(name)) {
+                    options.mode = parseMode(value);
+                } else if ("error".equals(name)) {
+                    options.errorCode = Integer.parseInt(value);
+                } else if ("config".equals(name)) {
+                    options.config = new File(value);
+                } else if ("log-dir".equals(name)) {
+                    options.logDirectory = new File(value);
+                } else if ("log-format".equals(name)) {
+                    RequestLog.sFormat = "binary".equals(value) ? RequestLog.FORMAT_BINARY : RequestLog.FORMAT_TEXT;
+                } else {
+                    throw new IllegalArgumentException("Unknown option --" + name);
+                }
+            }
+            return options;
+        }
+
+        private static int parseMode(String value) {
+            for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+                if (MODE_NAMES[mode].equals(value)) {
+                    return mode;
+                }
+            }
+            throw new IllegalArgumentException("Unknown mode " + value);
+        }
+    }
+
+    private static Properties loadProperties(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    private static String describeEngine(HttpServer server) {
+        if (server.getEngine() == HttpServer.ENGINE_NIO) {
+            return "nio engine";
+        }
+        if (HttpServer.sWorkerMode == HttpServer.WORKERS_VIRTUAL_THREADS && VirtualThreads.isSupported()) {
+            return "blocking engine on virtual threads";
+        }
+        return "blocking engine";
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        JvmPlatform platform = new JvmPlatform(options.logDirectory);
+        if (options.verbose) {
+            platform.setMinPriority(LogSink.VERBOSE);
+        }
+        if (options.config != null) {
+            platform.putAll(loadProperties(options.config));
+        }
+        // options on the command line win over the properties file
+        if (options.mode >= 0) {
+            platform.put(WeatherCommandHandler.PREF_SERVER_MODE, options.mode);
+        }
+        if (options.errorCode >= 0) {
+            platform.put(WeatherCommandHandler.PREF_SERVER_ERROR, options.errorCode);
+        }
+
+        final HttpServer server = new HttpServer(platform);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread("Main-shutdown") {
+            @Override
+            public void run() {
+                server.stopServer();
+                stopped.countDown();
+            }
+        });
+        server.startServer();
+        platform.log(LogSink.INFO, LOG_TAG, "Serving on port " + HttpServer.sServerPort + " with the " +
+                describeEngine(server) + ", logging to " + platform.getLogDirectory().getAbsolutePath(), null);
+        if (server.getTrafficCapture() != null) {
+            platform.log(LogSink.INFO, LOG_TAG, "Capturing traffic to " +
+                    server.getTrafficCapture().getFile().getAbsolutePath(), null);
+        }
+        // keep main() from returning until the shutdown hook has stopped the server
+        stopped.await();
+    }
+}